@@ -0,0 +1,165 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes to a channel from direct buffers, so that the channel doesn't
+ * copy the bytes into a temporary direct buffer of its own. The bytes are
+ * collected in a few buffers which go to the channel in one gathering
+ * write once they are all full. Given a position, a file channel is written
+ * at that offset instead, leaving the position of the channel alone.
+ *
+ * <p>The buffers come from a pool shared by all streams, because direct
+ * memory is expensive to allocate and slow to be freed.
+ */
+class ChannelOutputStream extends OutputStream {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int GATHER_COUNT = 4;
+    private static final int MAX_POOLED = 16;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final WritableByteChannel channel;
+    private long position;
+    private final ByteBuffer[] buffers = new ByteBuffer[GATHER_COUNT];
+    private int current = 0;
+    private long written = 0;
+
+    /**
+     * @param position the offset to write a file channel at, or -1 to write
+     *     at the position of the channel
+     */
+    public ChannelOutputStream(WritableByteChannel channel, long position) {
+        if (position >= 0 && !(channel instanceof FileChannel)) {
+            throw new IllegalArgumentException("only file channels can be written at a position");
+        }
+        this.channel = channel;
+        this.position = position;
+        for (int i = 0; i < GATHER_COUNT; i++) {
+            ByteBuffer buffer = pool.poll();
+            buffers[i] = buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to the channel so far.
+     */
+    public long written() {
+        return written;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffers[current].hasRemaining()) {
+            nextBuffer();
+        }
+        buffers[current].put((byte)b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer buffer = buffers[current];
+            if (!buffer.hasRemaining()) {
+                nextBuffer();
+                buffer = buffers[current];
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private void nextBuffer() throws IOException {
+        if (current + 1 < GATHER_COUNT) {
+            current++;
+        } else {
+            writeBuffers();
+        }
+    }
+
+    /**
+     * Writes the filled part of the buffers and makes them empty again.
+     */
+    private void writeBuffers() throws IOException {
+        for (int i = 0; i <= current; i++) {
+            buffers[i].flip();
+        }
+        if (position >= 0) {
+            FileChannel file = (FileChannel)channel;
+            for (int i = 0; i <= current; i++) {
+                while (buffers[i].hasRemaining()) {
+                    int count = file.write(buffers[i], position);
+                    position += count;
+                    written += count;
+                }
+            }
+        } else if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel)channel;
+            while (buffers[current].hasRemaining()) {
+                written += gathering.write(buffers, 0, current + 1);
+            }
+        } else {
+            for (int i = 0; i <= current; i++) {
+                while (buffers[i].hasRemaining()) {
+                    written += channel.write(buffers[i]);
+                }
+            }
+        }
+        for (int i = 0; i <= current; i++) {
+            buffers[i].clear();
+        }
+        current = 0;
+    }
+
+    /**
+     * Writes the buffered bytes to the channel. Channels have nothing to
+     * flush themselves.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBuffers();
+    }
+
+    /**
+     * Returns the buffers to the pool without closing the channel, which
+     * belongs to the caller. Unflushed bytes are dropped.
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < GATHER_COUNT; i++) {
+            if (buffers[i] != null) {
+                buffers[i].clear();
+                if (pool.size() < MAX_POOLED) {
+                    pool.offer(buffers[i]);
+                }
+                buffers[i] = null;
+            }
+        }
+    }
+
+}
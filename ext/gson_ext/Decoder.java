@@ -16,21 +16,37 @@
 
 package gson_ext;
 
-import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonHandler;
+import com.google.gson.stream.JsonPushParser;
 import com.google.gson.stream.JsonToken;
-import com.google.gson.stream.MalformedJsonException;
+import com.google.gson.stream.Utf8JsonReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.StringReader;
-import java.util.LinkedList;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.jcodings.Encoding;
+import org.jcodings.specific.ASCIIEncoding;
+import org.jcodings.specific.USASCIIEncoding;
+import org.jcodings.specific.UTF8Encoding;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyBoolean;
 import org.jruby.RubyClass;
+import org.jruby.RubyEncoding;
+import org.jruby.RubyEnumerator;
 import org.jruby.RubyException;
+import org.jruby.RubyFile;
 import org.jruby.RubyHash;
 import org.jruby.RubyIO;
 import org.jruby.RubyNumeric;
@@ -45,98 +61,85 @@ import org.jruby.java.addons.IOJavaAddons;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.Block;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+import org.jruby.util.JRubyFile;
 
 @JRubyClass(name = "Gson::Decoder")
 public class Decoder extends RubyObject {
 
-    private static class MemoizedReader extends Reader {
+    /**
+     * Reads a file through a sliding window of memory mappings, so that the
+     * bytes are copied straight out of the page cache without read(2) calls
+     * and without holding the whole file on the heap.
+     */
+    private static class MappedFileInputStream extends InputStream {
 
-        private Reader origin = null;
-        private StringBuilder memory = new StringBuilder(1024);
+        private static final long WINDOW_SIZE = 64 * 1024 * 1024;
 
-        public MemoizedReader() {
+        private FileChannel channel;
+        private long position = 0;
+        private long size;
+        private ByteBuffer window = ByteBuffer.allocate(0);
+
+        public MappedFileInputStream(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
         }
 
         @Override
         public void close() throws IOException {
-            origin.close();
+            window = ByteBuffer.allocate(0);
+            channel.close();
         }
 
         @Override
-        public int read(char[] cbuf, int off, int len) throws IOException {
-            int result = origin.read(cbuf, off, len);
-            if (result != -1) {
-                memory.append(cbuf, off, result);
+        public int read() throws IOException {
+            if (!window.hasRemaining() && !nextWindow()) {
+                return -1;
             }
-            return result;
-        }
-
-        public void setOrigin(Reader origin) {
-            this.origin = origin;
-        }
-
-        public void retainMemory(int tailSize) {
-            memory.delete(0, memory.length()-tailSize);
-        }
-
-        public String getMemory() {
-            return memory.toString();
-        }
-
-        private void clearMemory() {
-            memory.setLength(0);
-        }
-
-    }
-
-    private static class SequenceReader extends Reader {
-
-        private Reader r1 = null;
-        private Reader r2 = null;
-        private boolean r1Exhausted = false;
-
-        public SequenceReader(Reader r1, Reader r2) {
-            this.r1 = r1;
-            this.r2 = r2;
+            return window.get() & 0xff;
         }
 
         @Override
-        public void close() throws IOException {
-            r1.close();
-            r2.close();
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!window.hasRemaining() && !nextWindow()) {
+                return -1;
+            }
+            int count = Math.min(len, window.remaining());
+            window.get(b, off, count);
+            return count;
         }
 
-        @Override
-        public int read(char[] cbuf, int off, int len) throws IOException {
-            if (r1Exhausted) {
-                return r2.read(cbuf, off, len);
-            } else {
-                int result = r1.read(cbuf, off, len);
-                if (result < len) {
-                    r1Exhausted = true;
-                    if (result == -1) {
-                        return r2.read(cbuf, off, len);
-                    } else {
-                        return result + r2.read(cbuf, off+result, len-result);
-                    }
-                } else {
-                    return result;
-                }
+        private boolean nextWindow() throws IOException {
+            if (position >= size) {
+                return false;
             }
+            long length = Math.min(WINDOW_SIZE, size - position);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            position += length;
+            return true;
         }
 
     }
 
     static final long serialVersionUID = 2328444027137249699L;
+    /* Smaller batches of decode_many aren't worth handing to other threads */
+    static final int PARALLEL_MIN_BYTES = 64 * 1024;
     private boolean lenient = true;
     private boolean symbolizeKeys = false;
-    private static Pattern floatPattern = Pattern.compile("[.eE]");
+    private boolean cacheKeys = true;
+    private boolean sharedKeyCache = false;
+    private KeyCache keyCache;
+    private PathProjection projection;
     private Block onDocumentCallback = null;
-    private LinkedList<IRubyObject> builderStack = new LinkedList<IRubyObject>();
-    private MemoizedReader decodeMemory = new MemoizedReader();
-    private JsonReader reader;
-    private int nestedArrayLevel = 0;
-    private int nestedHashLevel = 0;
+    private DocumentBuilder builder;
+    private Utf8JsonReader reader;
+    private ExecutorService workers;
+    private DocumentBuilder pushBuilder;
+    private JsonPushParser pushParser;
 
     public Decoder(final Ruby ruby, RubyClass rubyClass) {
         super(ruby, rubyClass);
@@ -160,6 +163,19 @@ public class Decoder extends RubyObject {
         if (options.containsKey(name)) {
             this.symbolizeKeys = options.op_aref(context, name).isTrue();
         }
+        name = ruby.newSymbol("only");
+        if (options.containsKey(name)) {
+            IRubyObject paths = options.op_aref(context, name);
+            if (!paths.isNil()) {
+                this.projection = PathProjection.compile(ruby, paths);
+            }
+        }
+        name = ruby.newSymbol("key_cache");
+        if (options.containsKey(name)) {
+            IRubyObject value = options.op_aref(context, name);
+            this.cacheKeys = value.isTrue();
+            this.sharedKeyCache = value == ruby.newSymbol("shared");
+        }
         return context.nil;
     }
 
@@ -193,192 +209,514 @@ public class Decoder extends RubyObject {
 
     }
 
-    private Reader prepareSourceReader(Ruby ruby, ThreadContext context, IRubyObject source) {
+    private boolean isUtf8Source(IRubyObject source) {
         if (source instanceof RubyString) {
-            return new StringReader(source.toString());
-        } else if ((source instanceof RubyIO) || (source instanceof RubyStringIO)) {
-            IRubyObject stream = IOJavaAddons.AnyIO.any_to_inputstream(context, source);
-            return new InputStreamReader((InputStream)stream.toJava(InputStream.class));
-        } else {
-            throw ruby.newArgumentError("Unsupported source. This method accepts String or IO");
+            Encoding encoding = ((RubyString)source).getByteList().getEncoding();
+            return encoding == UTF8Encoding.INSTANCE ||
+                   encoding == USASCIIEncoding.INSTANCE ||
+                   encoding == ASCIIEncoding.INSTANCE;
         }
+        return false;
     }
 
-    private void appendValue(ThreadContext context, IRubyObject value) {
-        if (builderStack.size() > 0) {
-            IRubyObject head = builderStack.peek();
-            if (head instanceof RubyString || head instanceof RubySymbol) {
-                builderStack.pop();
-                RubyHash hash = (RubyHash)builderStack.peek();
-                hash.op_aset(context, head, value);
-                if (value instanceof RubyArray || value instanceof RubyHash) {
-                    builderStack.push(value);
-                }
-            } else if (head instanceof RubyArray) {
-                ((RubyArray)head).append(value);
-                if (value instanceof RubyArray || value instanceof RubyHash) {
-                    builderStack.push(value);
+    private ByteList utf8Bytes(RubyString source) {
+        if (isUtf8Source(source)) {
+            return source.getByteList();
+        }
+        return new ByteList(RubyEncoding.encodeUTF8(source.toString()), UTF8Encoding.INSTANCE, false);
+    }
+
+    private KeyCache keyCache(Ruby ruby) {
+        if (keyCache == null && cacheKeys) {
+            if (sharedKeyCache) {
+                keyCache = KeyCache.shared(ruby, this.symbolizeKeys);
+            } else {
+                keyCache = new KeyCache(ruby, this.symbolizeKeys);
+            }
+        }
+        return keyCache;
+    }
+
+    /**
+     * Reads exactly one value and reports its tokens to the handler.
+     */
+    static void readValue(Utf8JsonReader reader, JsonHandler handler) throws IOException {
+        int depth = 0;
+        do {
+            JsonToken token = reader.peek();
+            switch (token) {
+                case END_ARRAY:
+                    reader.endArray();
+                    handler.endArray();
+                    depth -= 1;
+
+                    break;
+                case END_OBJECT:
+                    reader.endObject();
+                    handler.endObject();
+                    depth -= 1;
+
+                    break;
+                case NAME:
+                    reader.consumeName();
+                    handler.name(reader.valueBytes(), reader.valueStart(), reader.valueLength());
+
+                    break;
+                case BEGIN_OBJECT:
+                    reader.beginObject();
+                    handler.beginObject();
+                    depth += 1;
+
+                    break;
+                case BEGIN_ARRAY:
+                    reader.beginArray();
+                    handler.beginArray();
+                    depth += 1;
+
+                    break;
+                case STRING:
+                    reader.consumeString();
+                    handler.string(reader.valueBytes(), reader.valueStart(), reader.valueLength());
+
+                    break;
+                case NUMBER:
+                    if (reader.hasLong()) {
+                        handler.number(reader.nextLong());
+                    } else {
+                        boolean fractional = reader.isFractional();
+                        reader.consumeString();
+                        handler.number(reader.valueBytes(), reader.valueStart(), reader.valueLength(), fractional);
+                    }
+
+                    break;
+                case BOOLEAN:
+                    handler.bool(reader.nextBoolean());
+
+                    break;
+                case NULL:
+                    reader.nextNull();
+                    handler.nullValue();
+
+                    break;
+                default:
+                    throw new IllegalStateException(String.format("Unknown token: %s", token.toString()));
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Decodes the source of the byte oriented reader. Without on_document
+     * callback it returns the first top-level value, otherwise it yields
+     * every top-level value as soon as it is complete.
+     */
+    private IRubyObject decodeUtf8(ThreadContext context, Utf8JsonReader reader) {
+        Ruby ruby = context.getRuntime();
+        reader.setLenient(this.lenient);
+        if (builder == null) {
+            builder = new DocumentBuilder(ruby, this.symbolizeKeys, keyCache(ruby));
+        }
+        DocumentBuilder builder = this.builder;
+        builder.reset();
+
+        try {
+            if (onDocumentCallback == null) {
+                return decodeFirst(reader, builder);
+            }
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                readDocument(reader, builder);
+                while (builder.hasDocument()) {
+                    onDocumentCallback.yield(context, builder.nextDocument());
                 }
-            } else if (head instanceof RubyHash) {
-                builderStack.push(value);
             }
+            return context.nil;
+        } catch (RaiseException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw DecodeError.newDecodeError(ruby, ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns the reader of in-memory sources, which is reused to keep its
+     * stack and scratch space.
+     */
+    private Utf8JsonReader reader(ByteList bytes) {
+        if (reader == null) {
+            reader = new Utf8JsonReader(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
         } else {
-            builderStack.push(value);
+            reader.reset(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
         }
+        return reader;
     }
 
-    private void checkAndFireCallback(ThreadContext context) {
-        if (onDocumentCallback != null) {
-            if (builderStack.size() == 1 && nestedArrayLevel == 0 && nestedHashLevel == 0) {
-                onDocumentCallback.yield(context, builderStack.pop());
+    /**
+     * Reads one top-level value, or the parts of it selected by the :only
+     * option.
+     */
+    private void readDocument(Utf8JsonReader reader, DocumentBuilder builder) throws IOException {
+        if (projection != null) {
+            projection.readValue(reader, builder);
+        } else {
+            readValue(reader, builder);
+        }
+    }
+
+    /**
+     * Returns the first top-level value of the reader, or nil if there is
+     * none. The rest of the input is checked and skipped.
+     */
+    private IRubyObject decodeFirst(Utf8JsonReader reader, DocumentBuilder builder) throws IOException {
+        IRubyObject result = getRuntime().getNil();
+        if (reader.peek() != JsonToken.END_DOCUMENT) {
+            readDocument(reader, builder);
+            if (builder.hasDocument()) {
+                result = builder.nextDocument();
+            }
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                reader.skipValue();
             }
         }
+        return result;
     }
 
-    private boolean isStartWith(String actual, String expected) {
-        if (actual.length() >= expected.length() && actual.substring(0, expected.length()).equals(expected)) {
-            return true;
+    private JsonPushParser pushParser(Ruby ruby) {
+        if (pushParser == null) {
+            pushBuilder = new DocumentBuilder(ruby, this.symbolizeKeys, keyCache(ruby));
+            if (projection != null) {
+                pushParser = new JsonPushParser(projection.filter(pushBuilder));
+            } else {
+                pushParser = new JsonPushParser(pushBuilder);
+            }
+            pushParser.setLenient(this.lenient);
         }
-        return false;
+        return pushParser;
     }
 
-    private void decodeChunk(ThreadContext context, IRubyObject source) {
+    private void feedBytes(ThreadContext context, byte[] bytes, int offset, int length) {
         Ruby ruby = context.getRuntime();
+        JsonPushParser parser = pushParser(ruby);
+        try {
+            parser.feed(bytes, offset, length);
+        } catch (RaiseException ex) {
+            resetPushParser();
+            throw ex;
+        } catch (Exception ex) {
+            resetPushParser();
+            throw DecodeError.newDecodeError(ruby, ex.getMessage());
+        }
+    }
+
+    private void resetPushParser() {
+        pushParser.reset();
+        pushBuilder.reset();
+    }
 
-        Reader sourceReader = prepareSourceReader(ruby, context, source);
-        String memory = decodeMemory.getMemory();
-        if (memory.length() > 0) {
-            Reader memoryReader = new StringReader(memory);
-            sourceReader = new SequenceReader(memoryReader, sourceReader);
+    /**
+     * Hands the documents completed by the push parser to the on_document
+     * callback, or returns them as an array when there is no callback.
+     */
+    private IRubyObject deliverDocuments(ThreadContext context) {
+        if (onDocumentCallback != null) {
+            while (pushBuilder.hasDocument()) {
+                onDocumentCallback.yield(context, pushBuilder.nextDocument());
+            }
+            return context.nil;
         }
-        decodeMemory.clearMemory();
-        decodeMemory.setOrigin(sourceReader);
+        RubyArray documents = RubyArray.newArray(context.getRuntime());
+        while (pushBuilder.hasDocument()) {
+            documents.append(pushBuilder.nextDocument());
+        }
+        return documents;
+    }
 
-        if (reader == null) {
-            reader = new JsonReader(decodeMemory);
+    @JRubyMethod
+    public IRubyObject feed(ThreadContext context, IRubyObject chunk) {
+        ByteList bytes = utf8Bytes(chunk.convertToString());
+        feedBytes(context, bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+        return deliverDocuments(context);
+    }
+
+    @JRubyMethod
+    public IRubyObject finish(ThreadContext context) {
+        Ruby ruby = context.getRuntime();
+        JsonPushParser parser = pushParser(ruby);
+        try {
+            parser.finish();
+        } catch (RaiseException ex) {
+            resetPushParser();
+            throw ex;
+        } catch (Exception ex) {
+            resetPushParser();
+            throw DecodeError.newDecodeError(ruby, ex.getMessage());
+        }
+        return deliverDocuments(context);
+    }
+
+    @JRubyMethod
+    public IRubyObject decode(ThreadContext context, IRubyObject source) {
+        Ruby ruby = context.getRuntime();
+        if (source instanceof RubyString) {
+            ByteList bytes = utf8Bytes((RubyString)source);
+            if (onDocumentCallback != null) {
+                feedBytes(context, bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+                return deliverDocuments(context);
+            }
+            return decodeUtf8(context, reader(bytes));
+        } else if ((source instanceof RubyIO) || (source instanceof RubyStringIO)) {
+            IRubyObject stream = IOJavaAddons.AnyIO.any_to_inputstream(context, source);
+            InputStream in = (InputStream)stream.toJava(InputStream.class);
+            if (onDocumentCallback != null) {
+                byte[] chunk = new byte[8192];
+                try {
+                    int count;
+                    while ((count = in.read(chunk)) != -1) {
+                        feedBytes(context, chunk, 0, count);
+                        deliverDocuments(context);
+                    }
+                } catch (IOException ex) {
+                    throw ruby.newIOErrorFromException(ex);
+                }
+                return context.nil;
+            }
+            return decodeUtf8(context, new Utf8JsonReader(in));
         } else {
-            reader.recoverAfterBreak(decodeMemory);
+            throw ruby.newArgumentError("Unsupported source. This method accepts String or IO");
         }
-        reader.setLenient(this.lenient);
-        reader.setChunkMode(onDocumentCallback != null);
+    }
 
-        if (memory.length() > 0) {
+    /**
+     * Decodes the inputs from one index to another with the reader and the
+     * builder of a single thread.
+     */
+    private void decodeSlice(ByteList[] inputs, int from, int to, IRubyObject[] results,
+                             Utf8JsonReader reader, DocumentBuilder builder) throws IOException {
+        reader.setLenient(this.lenient);
+        for (int i = from; i < to; i++) {
+            ByteList input = inputs[i];
+            reader.reset(input.getUnsafeBytes(), input.getBegin(), input.getRealSize());
+            builder.reset();
             try {
-                reader.peek();
-            } catch(IOException ex) {
-                //TODO: try to avoid allowing every "End of input" exception
-                if (onDocumentCallback == null && !isStartWith(ex.getMessage(), "End of input at line")) {
-                    throw DecodeError.newDecodeError(ruby, ex.getMessage());
+                results[i] = decodeFirst(reader, builder);
+            } catch (RaiseException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IOException(String.format("document %d: %s", i, ex.getMessage()), ex);
+            }
+        }
+    }
+
+    private ExecutorService workers() {
+        if (workers == null) {
+            // idle threads of a cached pool go away after a minute
+            workers = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "gson-decode-many");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return workers;
+    }
+
+    @JRubyMethod(name = "decode_many", required = 1, optional = 1)
+    public IRubyObject decodeMany(ThreadContext context, IRubyObject[] args) {
+        Ruby ruby = context.getRuntime();
+        RubyArray sources = args[0].convertToArray();
+        int parallelism = 1;
+        if (args.length > 1) {
+            if (!(args[1] instanceof RubyHash)) {
+                throw ruby.newArgumentError("expected Hash for options argument");
+            }
+            RubyHash options = (RubyHash)args[1];
+            RubySymbol name = ruby.newSymbol("parallelism");
+            if (options.containsKey(name)) {
+                parallelism = RubyNumeric.num2int(options.op_aref(context, name));
+                if (parallelism < 1) {
+                    throw ruby.newArgumentError("parallelism must be positive");
                 }
             }
         }
 
-        IRubyObject val;
+        int count = sources.getLength();
+        final ByteList[] inputs = new ByteList[count];
+        long size = 0;
+        for (int i = 0; i < count; i++) {
+            inputs[i] = utf8Bytes(sources.eltInternal(i).convertToString());
+            size += inputs[i].getRealSize();
+        }
+        final IRubyObject[] results = new IRubyObject[count];
+        if (builder == null) {
+            builder = new DocumentBuilder(ruby, this.symbolizeKeys, keyCache(ruby));
+        }
+        if (reader == null) {
+            reader = new Utf8JsonReader(new byte[0], 0, 0);
+        }
+
+        int slices = size < PARALLEL_MIN_BYTES ? 1 : Math.min(parallelism, count);
+        List<Future<?>> futures = new ArrayList<Future<?>>(slices);
         try {
-            while (true) {
-                JsonToken token = reader.peek();
-                switch (token) {
-                    case END_ARRAY:
-                        reader.endArray();
-                        nestedArrayLevel -= 1;
-                        if (builderStack.size() > 1) {
-                            builderStack.pop();
-                        }
-                        checkAndFireCallback(context);
-
-                        break;
-                    case END_OBJECT:
-                        reader.endObject();
-                        nestedHashLevel -= 1;
-                        if (builderStack.size() > 1) {
-                            builderStack.pop();
-                        }
-                        checkAndFireCallback(context);
-
-                        break;
-                    case NAME:
-                        if (this.symbolizeKeys) {
-                            val = RubySymbol.newSymbol(ruby, reader.nextName());
-                        } else {
-                            val = RubyString.newString(ruby, reader.nextName());
-                        }
-                        appendValue(context, val);
-
-                        break;
-                    case BEGIN_OBJECT:
-                        reader.beginObject();
-                        nestedHashLevel += 1;
-                        appendValue(context, RubyHash.newHash(ruby));
-
-                        break;
-                    case BEGIN_ARRAY:
-                        reader.beginArray();
-                        nestedArrayLevel += 1;
-                        appendValue(context, RubyArray.newArray(ruby));
-
-                        break;
-                    case STRING:
-                        val = RubyString.newString(ruby, reader.nextString());
-                        appendValue(context, val);
-
-                        break;
-                    case NUMBER:
-                        String tmp = reader.nextString();
-                        if (floatPattern.matcher(tmp).find()) {
-                            val = RubyNumeric.str2fnum(ruby, RubyString.newString(ruby, tmp));
-                        } else {
-                            val = RubyNumeric.str2inum(ruby, RubyString.newString(ruby, tmp), 10);
-                        }
-                        appendValue(context, val);
-
-                        break;
-                    case BOOLEAN:
-                        val = RubyBoolean.newBoolean(ruby, reader.nextBoolean());
-                        appendValue(context, val);
-
-                        break;
-                    case NULL:
-                        reader.nextNull();
-                        appendValue(context, context.nil);
-
-                        break;
-                    case END_DOCUMENT:
-                        return;
-                    default:
-                        throw DecodeError.newDecodeError(ruby, String.format("Unknown token: %s", token.toString()));
-                }
+            // the other threads take the later slices, this one takes the first
+            for (int slice = 1; slice < slices; slice++) {
+                final int from = (int)((long)count * slice / slices);
+                final int to = (int)((long)count * (slice + 1) / slices);
+                final DocumentBuilder sliceBuilder = new DocumentBuilder(ruby, this.symbolizeKeys, keyCache(ruby));
+                futures.add(workers().submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        decodeSlice(inputs, from, to, results, new Utf8JsonReader(new byte[0], 0, 0), sliceBuilder);
+                        return null;
+                    }
+                }));
+            }
+            decodeSlice(inputs, 0, count / slices, results, reader, builder);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (RaiseException ex) {
+            throw ex;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw DecodeError.newDecodeError(ruby, "interrupted while decoding documents");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RaiseException) {
+                throw (RaiseException)ex.getCause();
+            }
+            throw DecodeError.newDecodeError(ruby, ex.getCause().getMessage());
+        } catch (Exception ex) {
+            throw DecodeError.newDecodeError(ruby, ex.getMessage());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return RubyArray.newArrayNoCopy(ruby, results);
+    }
 
-                reader.prepareForBreak();
-                decodeMemory.retainMemory(reader.getUnreadBufferLength());
+    @JRubyMethod(name = "decode_lines", required = 1, optional = 1)
+    public IRubyObject decodeLines(ThreadContext context, IRubyObject[] args, Block block) {
+        Ruby ruby = context.getRuntime();
+        if (!block.isGiven()) {
+            return RubyEnumerator.enumeratorize(ruby, this, "decode_lines", args);
+        }
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        boolean ordered = true;
+        if (args.length > 1) {
+            if (!(args[1] instanceof RubyHash)) {
+                throw ruby.newArgumentError("expected Hash for options argument");
             }
-        } catch (MalformedJsonException ex) {
-            if (onDocumentCallback != null && (isStartWith(ex.getMessage(), "Unterminated string at line") ||
-                                               isStartWith(ex.getMessage(), "Unterminated array at line") ||
-                                               isStartWith(ex.getMessage(), "Unterminated object at line") ||//TODO: try to avoid allowing this
-                                               isStartWith(ex.getMessage(), "Unterminated escape sequence at line"))) {
-                return;
-            } else {
-                throw DecodeError.newDecodeError(ruby, ex.getMessage());
+            RubyHash options = (RubyHash)args[1];
+            RubySymbol name = ruby.newSymbol("parallelism");
+            if (options.containsKey(name)) {
+                parallelism = RubyNumeric.num2int(options.op_aref(context, name));
+                if (parallelism < 1) {
+                    throw ruby.newArgumentError("parallelism must be positive");
+                }
             }
-        } catch (IOException ex) {
-            if (onDocumentCallback != null && isStartWith(ex.getMessage(), "End of input at line")) {
-                return;
+            name = ruby.newSymbol("ordered");
+            if (options.containsKey(name)) {
+                ordered = options.op_aref(context, name).isTrue();
+            }
+        }
+
+        IRubyObject source = args[0];
+        LineDecoder decoder = new LineDecoder(ruby, this.lenient, this.symbolizeKeys, keyCache(ruby),
+                                              this.projection, parallelism, ordered);
+        if (source instanceof RubyString) {
+            RubyString string = (RubyString)source;
+            ByteList bytes;
+            if (isUtf8Source(string)) {
+                // the workers read the bytes while the block runs, which could change the source
+                bytes = RubyString.newStringShared(ruby, string).getByteList();
             } else {
-                throw DecodeError.newDecodeError(ruby, ex.getMessage());
+                bytes = utf8Bytes(string);
             }
+            decoder.decode(context, bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize(), block);
+        } else if ((source instanceof RubyIO) || (source instanceof RubyStringIO)) {
+            IRubyObject stream = IOJavaAddons.AnyIO.any_to_inputstream(context, source);
+            decoder.decode(context, (InputStream)stream.toJava(InputStream.class), block);
+        } else {
+            throw ruby.newArgumentError("Unsupported source. This method accepts String or IO");
+        }
+        return context.nil;
+    }
+
+    @JRubyMethod(name = "decode_lazy")
+    public IRubyObject decodeLazy(ThreadContext context, IRubyObject source) {
+        Ruby ruby = context.getRuntime();
+        RubyString string;
+        if (source instanceof RubyString) {
+            string = (RubyString)source;
+        } else if ((source instanceof RubyIO) || (source instanceof RubyStringIO)) {
+            string = source.callMethod(context, "read").convertToString();
+        } else {
+            throw ruby.newArgumentError("Unsupported source. This method accepts String or IO");
+        }
+
+        ByteList bytes;
+        if (isUtf8Source(string)) {
+            // the document keeps the bytes, so a change to the source must copy them first
+            bytes = RubyString.newStringShared(ruby, string).getByteList();
+        } else {
+            bytes = utf8Bytes(string);
+        }
+        LazyDocument.Tape tape = new LazyDocument.Tape(ruby, bytes.getUnsafeBytes(), this.symbolizeKeys, keyCache(ruby));
+        Utf8JsonReader reader = new Utf8JsonReader(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+        reader.setLenient(this.lenient);
+        try {
+            return LazyDocument.parse(reader, tape);
+        } catch (RaiseException ex) {
+            throw ex;
         } catch (Exception ex) {
             throw DecodeError.newDecodeError(ruby, ex.getMessage());
         }
     }
 
-    @JRubyMethod
-    public IRubyObject decode(ThreadContext context, IRubyObject source) {
-        decodeChunk(context, source);
-        if (onDocumentCallback != null) {
-            checkAndFireCallback(context);
-            return context.nil;
+    @JRubyMethod(name = "decode_file")
+    public IRubyObject decodeFile(ThreadContext context, IRubyObject path) {
+        Ruby ruby = context.getRuntime();
+        String filename = RubyFile.get_path(context, path).asJavaString();
+        File file = JRubyFile.create(ruby.getCurrentDirectory(), filename);
+        if (file.isDirectory()) {
+            throw ruby.newErrnoEISDirError(filename);
+        }
+
+        FileChannel channel;
+        try {
+            channel = new FileInputStream(file).getChannel();
+        } catch (FileNotFoundException ex) {
+            // Java reports every failure to open a file this way
+            if (!file.exists()) {
+                throw ruby.newErrnoENOENTError(filename);
+            }
+            if (!file.canRead()) {
+                throw ruby.newErrnoEACCESError(filename);
+            }
+            throw ruby.newIOErrorFromException(ex);
+        }
+        Utf8JsonReader reader = null;
+        try {
+            reader = new Utf8JsonReader(new MappedFileInputStream(channel), 64 * 1024);
+        } catch (IOException ex) {
+            throw ruby.newIOErrorFromException(ex);
+        } finally {
+            if (reader == null) {
+                // mapping the first window failed, the reader won't close the file
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // the error of the mapping is raised instead
+                }
+            }
+        }
+        try {
+            return decodeUtf8(context, reader);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                // the file has been read already
+            }
         }
-        return builderStack.pop();
     }
 
 }
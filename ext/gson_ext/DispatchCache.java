@@ -0,0 +1,212 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyModule;
+import org.jruby.internal.runtime.methods.DynamicMethod;
+import org.jruby.runtime.callsite.CacheEntry;
+
+/**
+ * Remembers how the encoder serializes the instances of a class which
+ * isn't one of the core types: with a {@link Serializer}, with its
+ * <code>as_json</code> method, as an array of the elements yielded by its
+ * <code>each</code> method, with its <code>to_s</code> method, or with
+ * neither of them. The method is looked up once per class and called
+ * directly afterwards.
+ *
+ * <p>An entry is tagged with the generation of its class, which changes
+ * whenever a method of the class or one of its ancestors is defined or
+ * removed, so redefined methods are looked up again. Classes overriding
+ * <code>respond_to?</code> get the {@link #DYNAMIC} strategy, because only
+ * the object itself can tell which methods it answers to.
+ *
+ * <p>Like {@link NameCache} the cache is direct mapped, keyed by identity
+ * and its slots hold immutable entries.
+ */
+class DispatchCache {
+
+    /** Call <code>as_json</code> and encode its result. */
+    static final int AS_JSON = 0;
+    /** Call <code>to_s</code> and encode the string. */
+    static final int TO_S = 1;
+    /** Encode the default string representation of the object. */
+    static final int ANY_TO_S = 2;
+    /** Ask the object with <code>respond_to?</code> every time. */
+    static final int DYNAMIC = 3;
+    /** Hand the object to a {@link Serializer}. */
+    static final int SERIALIZER = 4;
+    /** Encode the elements yielded by <code>each</code> as an array. */
+    static final int EACH = 5;
+
+    static final class Entry {
+        final RubyClass klass;
+        final int generation;
+        final int strategy;
+        final DynamicMethod method;
+        final Serializer serializer;
+
+        Entry(RubyClass klass, int generation, int strategy, DynamicMethod method) {
+            this(klass, generation, strategy, method, null);
+        }
+
+        Entry(RubyClass klass, int generation, int strategy, DynamicMethod method, Serializer serializer) {
+            this.klass = klass;
+            this.generation = generation;
+            this.strategy = strategy;
+            this.method = method;
+            this.serializer = serializer;
+        }
+    }
+
+    static final int DEFAULT_SIZE = 256;
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final Map<RubyModule, Serializer> serializers;
+    private final Map<String, Serializer> namedSerializers;
+
+    /**
+     * @param size the number of slots, must be a power of two
+     * @param serializers the serializers registered for classes and modules
+     * @param namedSerializers the serializers for classes of these names
+     */
+    public DispatchCache(int size, Map<RubyModule, Serializer> serializers,
+                         Map<String, Serializer> namedSerializers) {
+        this.entries = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+        this.serializers = serializers;
+        this.namedSerializers = namedSerializers;
+    }
+
+    public DispatchCache(Map<RubyModule, Serializer> serializers,
+                         Map<String, Serializer> namedSerializers) {
+        this(DEFAULT_SIZE, serializers, namedSerializers);
+    }
+
+    /**
+     * Returns the strategy for the instances of the class, looking it up
+     * if the class isn't cached or has changed since.
+     */
+    public Entry get(RubyClass klass) {
+        int slot = System.identityHashCode(klass) & mask;
+        Entry entry = entries.get(slot);
+        if (entry != null && entry.klass == klass && entry.generation == klass.getGeneration()) {
+            return entry;
+        }
+        entry = resolve(klass);
+        entries.lazySet(slot, entry);
+        return entry;
+    }
+
+    /**
+     * Picks the serializer of the nearest ancestor which has one, and
+     * otherwise makes the same choice as <code>respondsTo</code> would:
+     * methods are found regardless of their visibility. Lazy documents
+     * are written as the objects and arrays they view.
+     *
+     * <p>Enumerators are always iterated, even if they have an
+     * <code>as_json</code>, which would collect all of their elements
+     * first. Other Enumerable objects are iterated if they have no
+     * <code>as_json</code> and their <code>to_s</code> is the default one,
+     * which only describes the object, so ranges and structs are still
+     * written as strings. IO, StringIO and Dir are never iterated, since
+     * that would read from the caller's stream.
+     */
+    private Entry resolve(RubyClass klass) {
+        CacheEntry respondTo = klass.searchWithCache("respond_to?");
+        int generation = respondTo.token;
+        Serializer serializer = findSerializer(klass);
+        if (serializer != null) {
+            return new Entry(klass, generation, SERIALIZER, null, serializer);
+        }
+        if (isLazyDocument(klass)) {
+            return new Entry(klass, generation, SERIALIZER, null, LazyDocument.SERIALIZER);
+        }
+        if (!respondTo.method.equals(klass.getRuntime().getRespondToMethod())) {
+            return new Entry(klass, generation, DYNAMIC, null);
+        }
+        Ruby ruby = klass.getRuntime();
+        DynamicMethod each = klass.searchMethod("each");
+        if (!each.isUndefined() && klass.hasModuleInHierarchy(ruby.getEnumerator())) {
+            return new Entry(klass, generation, EACH, each);
+        }
+        DynamicMethod method = klass.searchMethod("as_json");
+        if (!method.isUndefined()) {
+            return new Entry(klass, generation, AS_JSON, method);
+        }
+        method = klass.searchMethod("to_s");
+        if (!each.isUndefined() && (method.isUndefined() || method.getImplementationClass() == ruby.getKernel()) &&
+            isCollection(klass)) {
+            return new Entry(klass, generation, EACH, each);
+        }
+        if (!method.isUndefined()) {
+            return new Entry(klass, generation, TO_S, method);
+        }
+        return new Entry(klass, generation, ANY_TO_S, null);
+    }
+
+    private static boolean isLazyDocument(RubyClass klass) {
+        RubyModule gson = klass.getRuntime().getModule("Gson");
+        RubyClass lazyDocument = gson == null ? null : gson.getClass("LazyDocument");
+        return lazyDocument != null && klass.hasModuleInHierarchy(lazyDocument);
+    }
+
+    /**
+     * Returns true for the Enumerable classes whose each yields elements
+     * held by the object, rather than reading them from a stream.
+     */
+    private static boolean isCollection(RubyClass klass) {
+        Ruby ruby = klass.getRuntime();
+        if (!klass.hasModuleInHierarchy(ruby.getEnumerable()) ||
+            klass.hasModuleInHierarchy(ruby.getIO()) || klass.hasModuleInHierarchy(ruby.getDir())) {
+            return false;
+        }
+        RubyClass stringIO = ruby.getClass("StringIO");
+        return stringIO == null || !klass.hasModuleInHierarchy(stringIO);
+    }
+
+    private Serializer findSerializer(RubyClass klass) {
+        if (serializers.isEmpty() && namedSerializers.isEmpty()) {
+            return null;
+        }
+        for (RubyClass ancestor = klass; ancestor != null; ancestor = ancestor.getSuperClass()) {
+            if (ancestor.isIncluded()) {
+                Serializer serializer = serializers.get(ancestor.getNonIncludedClass());
+                if (serializer != null) {
+                    return serializer;
+                }
+                continue;
+            }
+            Serializer serializer = serializers.get(ancestor);
+            if (serializer == null && !ancestor.isSingleton()) {
+                serializer = namedSerializers.get(ancestor.getName());
+                if (serializer != null && !Serializers.appliesTo(serializer, klass)) {
+                    serializer = null;
+                }
+            }
+            if (serializer != null) {
+                return serializer;
+            }
+        }
+        return null;
+    }
+
+}
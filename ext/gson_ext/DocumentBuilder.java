@@ -0,0 +1,294 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import com.google.gson.stream.JsonHandler;
+import java.math.BigInteger;
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyBignum;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyHash;
+import org.jruby.RubyString;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * Builds Ruby objects out of the tokens of a JSON stream. Both the pull
+ * loop of {@link Decoder} and {@link com.google.gson.stream.JsonPushParser}
+ * drive it. Complete top-level values are queued until they are taken with
+ * {@link #nextDocument}.
+ */
+class DocumentBuilder implements JsonHandler {
+
+    private final Ruby ruby;
+    private final boolean symbolizeKeys;
+    private final KeyCache keyCache;
+
+    /*
+     * The frames of the containers being built: the container, whether it
+     * is an array or a hash, and the key waiting for its value. Reused for
+     * every document, so building a value allocates only the value itself.
+     */
+    private IRubyObject[] containers = new IRubyObject[32];
+    private boolean[] arrayFrames = new boolean[32];
+    private IRubyObject[] keys = new IRubyObject[32];
+    private int depth = 0;
+
+    /* The queue of complete top-level values */
+    private IRubyObject[] documents = new IRubyObject[4];
+    private int documentsHead = 0;
+    private int documentsTail = 0;
+
+    /**
+     * @param keyCache the cache of hash keys, or null to allocate every key
+     */
+    public DocumentBuilder(Ruby ruby, boolean symbolizeKeys, KeyCache keyCache) {
+        this.ruby = ruby;
+        this.symbolizeKeys = symbolizeKeys;
+        this.keyCache = keyCache;
+    }
+
+    public boolean hasDocument() {
+        return documentsHead < documentsTail;
+    }
+
+    public IRubyObject nextDocument() {
+        if (documentsHead == documentsTail) {
+            return null;
+        }
+        IRubyObject document = documents[documentsHead];
+        documents[documentsHead++] = null;
+        if (documentsHead == documentsTail) {
+            documentsHead = documentsTail = 0;
+        }
+        return document;
+    }
+
+    public void reset() {
+        for (int i = 0; i < depth; i++) {
+            containers[i] = null;
+            keys[i] = null;
+        }
+        depth = 0;
+        while (hasDocument()) {
+            nextDocument();
+        }
+    }
+
+    private void addDocument(IRubyObject document) {
+        if (documentsTail == documents.length) {
+            IRubyObject[] newDocuments = new IRubyObject[documents.length * 2];
+            System.arraycopy(documents, 0, newDocuments, 0, documentsTail);
+            documents = newDocuments;
+        }
+        documents[documentsTail++] = document;
+    }
+
+    private RubyString newUtf8String(byte[] bytes, int start, int length) {
+        ByteList value = new ByteList(bytes, start, length, UTF8Encoding.INSTANCE, true);
+        return RubyString.newStringNoCopy(ruby, value);
+    }
+
+    /**
+     * Parses a number literal which the reader has validated already. When
+     * both the significant digits and the power of ten are exact doubles,
+     * a single multiplication or division gives the correctly rounded result
+     * (Clinger's fast path). Other literals go to Double.parseDouble.
+     */
+    static double parseDouble(byte[] bytes, int start, int length) {
+        int i = start;
+        int end = start + length;
+        boolean negative = bytes[i] == '-';
+        if (negative) {
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            int c = bytes[i];
+            if (c >= '0' && c <= '9') {
+                if (mantissa != 0 || c != '0') {
+                    if (++digits > 15) {
+                        return parseDoubleSlow(bytes, start, length);
+                    }
+                    mantissa = mantissa * 10 + (c - '0');
+                }
+                if (fraction) {
+                    exponent--;
+                }
+            } else if (c == '.') {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (i < end) {
+            // the exponent, possibly without digits: "1e" is accepted as "1"
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            int value = 0;
+            for (; i < end; i++) {
+                if (value > 10000) {
+                    return parseDoubleSlow(bytes, start, length);
+                }
+                value = value * 10 + (bytes[i] - '0');
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        double result;
+        if (mantissa == 0) {
+            result = 0.0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            result = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            result = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return parseDoubleSlow(bytes, start, length);
+        }
+        return negative ? -result : result;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static double parseDoubleSlow(byte[] bytes, int start, int length) {
+        int end = start + length;
+        if (bytes[end - 1] == 'e' || bytes[end - 1] == 'E') {
+            end--;
+        }
+        return Double.parseDouble(asciiString(bytes, start, end - start));
+    }
+
+    static String asciiString(byte[] bytes, int start, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char)bytes[start + i];
+        }
+        return new String(chars);
+    }
+
+    private void appendValue(IRubyObject value) {
+        if (depth == 0) {
+            addDocument(value);
+            return;
+        }
+        int top = depth - 1;
+        if (arrayFrames[top]) {
+            ((RubyArray)containers[top]).append(value);
+        } else {
+            ((RubyHash)containers[top]).fastASetCheckString(ruby, keys[top], value);
+            keys[top] = null;
+        }
+    }
+
+    private void beginContainer(IRubyObject container, boolean array) {
+        if (depth > 0) {
+            appendValue(container);
+        }
+        if (depth == containers.length) {
+            int newLength = depth * 2;
+            IRubyObject[] newContainers = new IRubyObject[newLength];
+            System.arraycopy(containers, 0, newContainers, 0, depth);
+            containers = newContainers;
+            boolean[] newArrayFrames = new boolean[newLength];
+            System.arraycopy(arrayFrames, 0, newArrayFrames, 0, depth);
+            arrayFrames = newArrayFrames;
+            IRubyObject[] newKeys = new IRubyObject[newLength];
+            System.arraycopy(keys, 0, newKeys, 0, depth);
+            keys = newKeys;
+        }
+        containers[depth] = container;
+        arrayFrames[depth] = array;
+        depth++;
+    }
+
+    private void endContainer() {
+        depth--;
+        IRubyObject container = containers[depth];
+        containers[depth] = null;
+        if (depth == 0) {
+            addDocument(container);
+        }
+    }
+
+    public void beginArray() {
+        beginContainer(RubyArray.newArray(ruby), true);
+    }
+
+    public void endArray() {
+        endContainer();
+    }
+
+    public void beginObject() {
+        beginContainer(RubyHash.newHash(ruby), false);
+    }
+
+    public void endObject() {
+        endContainer();
+    }
+
+    public void name(byte[] bytes, int start, int length) {
+        IRubyObject key;
+        if (keyCache != null) {
+            key = keyCache.get(bytes, start, length);
+        } else if (symbolizeKeys) {
+            key = ruby.newSymbol(new ByteList(bytes, start, length, UTF8Encoding.INSTANCE, true));
+        } else {
+            key = newUtf8String(bytes, start, length);
+        }
+        keys[depth - 1] = key;
+    }
+
+    public void string(byte[] bytes, int start, int length) {
+        appendValue(newUtf8String(bytes, start, length));
+    }
+
+    public void number(long value) {
+        appendValue(RubyFixnum.newFixnum(ruby, value));
+    }
+
+    public void number(byte[] bytes, int start, int length, boolean fractional) {
+        if (fractional) {
+            appendValue(RubyFloat.newFloat(ruby, parseDouble(bytes, start, length)));
+        } else {
+            appendValue(RubyBignum.newBignum(ruby, new BigInteger(asciiString(bytes, start, length))));
+        }
+    }
+
+    public void bool(boolean value) {
+        appendValue(RubyBoolean.newBoolean(ruby, value));
+    }
+
+    public void nullValue() {
+        appendValue(ruby.getNil());
+    }
+
+}
@@ -16,21 +16,41 @@
 
 package gson_ext;
 
-import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.Utf8JsonWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jcodings.Encoding;
+import org.jcodings.specific.ASCIIEncoding;
+import org.jcodings.specific.USASCIIEncoding;
+import org.jcodings.specific.UTF8Encoding;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
+import org.jruby.RubyBignum;
 import org.jruby.RubyBoolean;
 import org.jruby.RubyClass;
+import org.jruby.RubyEnumerable;
 import org.jruby.RubyException;
+import org.jruby.RubyFixnum;
 import org.jruby.RubyFloat;
 import org.jruby.RubyHash;
 import org.jruby.RubyIO;
-import org.jruby.RubyInteger;
+import org.jruby.RubyModule;
 import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
 import org.jruby.RubyString;
@@ -40,18 +60,40 @@ import org.jruby.anno.JRubyMethod;
 import org.jruby.exceptions.RaiseException;
 import org.jruby.ext.stringio.RubyStringIO;
 import org.jruby.java.addons.IOJavaAddons;
+import org.jruby.runtime.Arity;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.BlockCallback;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
 import org.jruby.util.IOOutputStream;
 
 @JRubyClass(name = "Gson::Encoder")
 public class Encoder extends RubyObject {
 
     static final long serialVersionUID = 5035506147333315973L;
+    /* Top-level arrays and hashes are split between threads from this size */
+    static final int PARALLEL_MIN_ELEMENTS = 1024;
+    static final int PARALLEL_MIN_SLICE = 256;
     private boolean htmlSafe = false;
     private boolean lenient = true;
     private boolean serializeNulls = true;
     private String indent = "";
+    private int bufferSize = 8192;
+    private boolean nativeTypes = false;
+    private int parallelism = 1;
+    /* Workers of parallel encoding, created on first use */
+    private final AtomicReference<ExecutorService> workers = new AtomicReference<ExecutorService>();
+    /* Serializers registered with register_serializer */
+    private Map<RubyModule, Serializer> serializers = Collections.emptyMap();
+    /* The buffer of IO output, null while an encode call is using it */
+    private final AtomicReference<byte[]> outputBuffer = new AtomicReference<byte[]>();
+    /* Encoded names of symbol and frozen string keys, for the settings above */
+    private final NameCache nameCache = new NameCache();
+    /* The expected output sizes of encode calls without IO */
+    private final SizeEstimator sizeEstimator = new SizeEstimator();
+    /* How the instances of other classes are encoded */
+    private DispatchCache dispatchCache = newDispatchCache();
     private IRubyObject options;
 
     public Encoder(final Ruby ruby, RubyClass rubyClass) {
@@ -78,6 +120,32 @@ public class Encoder extends RubyObject {
         return RubyString.newString(context.getRuntime(), this.indent);
     }
 
+    @JRubyMethod(name = "buffer_size")
+    public IRubyObject getBufferSize(ThreadContext context) {
+        return context.getRuntime().newFixnum(this.bufferSize);
+    }
+
+    @JRubyMethod(name = "parallelism")
+    public IRubyObject getParallelism(ThreadContext context) {
+        return context.getRuntime().newFixnum(this.parallelism);
+    }
+
+    /**
+     * Returns how well the output of encode calls without IO was
+     * presized: {:hits => n, :misses => n, :sizes => {limit => count}},
+     * where misses are the calls whose output had to grow, and sizes
+     * counts the outputs below each power of two.
+     */
+    @JRubyMethod(name = "buffer_stats")
+    public IRubyObject getBufferStats(ThreadContext context) {
+        return sizeEstimator.stats(context.getRuntime());
+    }
+
+    @JRubyMethod(name = "native_types?")
+    public IRubyObject isNativeTypes(ThreadContext context) {
+        return RubyBoolean.newBoolean(context.getRuntime(), this.nativeTypes);
+    }
+
     @JRubyMethod(optional = 1)
     public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
         Ruby ruby = context.getRuntime();
@@ -111,9 +179,58 @@ public class Encoder extends RubyObject {
                 this.indent = val.checkStringType().asJavaString();
             }
         }
+        name = ruby.newSymbol("buffer_size");
+        if (options.containsKey(name)) {
+            this.bufferSize = RubyNumeric.num2int(options.op_aref(context, name));
+            if (this.bufferSize < 16) {
+                throw ruby.newArgumentError("buffer_size must be at least 16 bytes");
+            }
+        }
+        name = ruby.newSymbol("parallelism");
+        if (options.containsKey(name)) {
+            this.parallelism = RubyNumeric.num2int(options.op_aref(context, name));
+            if (this.parallelism < 1) {
+                throw ruby.newArgumentError("parallelism must be positive");
+            }
+        }
+        name = ruby.newSymbol("native_types");
+        if (options.containsKey(name)) {
+            this.nativeTypes = options.op_aref(context, name).isTrue();
+            this.dispatchCache = newDispatchCache();
+        }
         return context.nil;
     }
 
+    /**
+     * Registers a Java object implementing gson_ext.Serializer for the
+     * instances of a class or module and their descendants. It takes
+     * precedence over as_json and the :native_types serializers.
+     */
+    @JRubyMethod(name = "register_serializer")
+    public IRubyObject registerSerializer(ThreadContext context, IRubyObject module, IRubyObject serializer) {
+        Ruby ruby = context.getRuntime();
+        if (!(module instanceof RubyModule)) {
+            throw ruby.newArgumentError("expected Class or Module");
+        }
+        Object target = serializer.toJava(Object.class);
+        if (!(target instanceof Serializer)) {
+            throw ruby.newArgumentError("expected an implementation of gson_ext.Serializer");
+        }
+        Map<RubyModule, Serializer> registered = new IdentityHashMap<RubyModule, Serializer>(this.serializers);
+        registered.put((RubyModule)module, (Serializer)target);
+        this.serializers = registered;
+        this.dispatchCache = newDispatchCache();
+        return this;
+    }
+
+    private DispatchCache newDispatchCache() {
+        Map<String, Serializer> named = Collections.emptyMap();
+        if (this.nativeTypes) {
+            named = Serializers.builtins();
+        }
+        return new DispatchCache(this.serializers, named);
+    }
+
     @JRubyClass(name="Gson::EncodeError", parent="StandardError")
     public static class EncodeError {
 
@@ -127,81 +244,731 @@ public class Encoder extends RubyObject {
     @JRubyMethod(required = 1, optional = 1)
     public IRubyObject encode(ThreadContext context, IRubyObject[] args) {
         Ruby ruby = context.getRuntime();
-        Writer out = null;
+        Utf8JsonWriter writer;
+        byte[] buffer = null;
 
+        if (args.length > 1 && args[1] instanceof RubyHash) {
+            return encodeInto(context, args[0], (RubyHash)args[1]);
+        }
+        int capacity = 0;
         if (args.length < 2 || args[1].isNil()) {
-            out = new StringWriter();
+            capacity = sizeEstimator.capacity(args[0]);
+            writer = new Utf8JsonWriter(capacity);
         } else {
             IRubyObject io = args[1];
             if ((io instanceof RubyIO) || (io instanceof RubyStringIO)) {
                 IRubyObject stream = IOJavaAddons.AnyIO.any_to_outputstream(context, io);
-                out = new OutputStreamWriter((OutputStream)stream.toJava(OutputStream.class));
+                buffer = takeOutputBuffer();
+                writer = new Utf8JsonWriter((OutputStream)stream.toJava(OutputStream.class), buffer);
             } else {
                 throw ruby.newArgumentError("Unsupported source. This method accepts IO");
             }
         }
 
-        JsonWriter writer = new JsonWriter(out);
-        writer.setLenient(this.lenient);
-        writer.setHtmlSafe(this.htmlSafe);
-        writer.setIndent(this.indent);
-        writer.setSerializeNulls(this.serializeNulls);
+        configure(writer);
         try {
-            encodeValue(writer, context, args[0]);
+            encodeDocument(writer, context, args[0]);
+            if (buffer != null) {
+                writer.flush();
+            }
         } catch (Exception ex) {
             throw EncodeError.newEncodeError(ruby, ex.getMessage());
+        } finally {
+            if (buffer != null) {
+                giveBackOutputBuffer(buffer);
+            }
         }
-        if (out instanceof StringWriter) {
-            return ruby.newString(out.toString());
+        if (buffer == null) {
+            sizeEstimator.record(args[0], writer.size(), writer.bytes().length > capacity);
+            return RubyString.newStringNoCopy(ruby, result(writer));
         } else {
             return context.nil;
         }
     }
 
-    private void encodeValue(JsonWriter writer, ThreadContext context, IRubyObject val)
-        throws IOException {
+    /**
+     * Appends the value to the :into option, a String or a Java ByteBuffer,
+     * and returns it.
+     */
+    private IRubyObject encodeInto(ThreadContext context, IRubyObject val, RubyHash options) {
+        Ruby ruby = context.getRuntime();
+        IRubyObject into = options.op_aref(context, ruby.newSymbol("into"));
+        if (into instanceof RubyString) {
+            appendTo(context, val, (RubyString)into);
+            return into;
+        }
+        Object target = into.toJava(Object.class);
+        if (!(target instanceof ByteBuffer)) {
+            throw ruby.newArgumentError("Unsupported target. :into accepts String or ByteBuffer");
+        }
+        putInto(context, val, (ByteBuffer)target);
+        return into;
+    }
+
+    /**
+     * Writes the value right behind the bytes of the string, into its own
+     * array if there is room, which is reserved from the previous outputs.
+     * The string keeps its bytes if encoding fails.
+     */
+    private void appendTo(ThreadContext context, IRubyObject val, RubyString string) {
+        Ruby ruby = context.getRuntime();
+        ByteList bytes = string.getByteList();
+        Encoding encoding = bytes.getEncoding();
+        if (encoding != UTF8Encoding.INSTANCE && encoding != USASCIIEncoding.INSTANCE &&
+            encoding != ASCIIEncoding.INSTANCE) {
+            throw ruby.newEncodingCompatibilityError("incompatible encoding for JSON: " + encoding);
+        }
+        int length = bytes.getRealSize();
+        int capacity = sizeEstimator.capacity(val);
+        string.modify19(length + capacity);
+        bytes = string.getByteList();
+        byte[] array = bytes.getUnsafeBytes();
+        int begin = bytes.getBegin();
+
+        Utf8JsonWriter writer = new Utf8JsonWriter(array, begin + length);
+        configure(writer);
+        try {
+            encodeDocument(writer, context, val);
+        } catch (Exception ex) {
+            throw EncodeError.newEncodeError(ruby, ex.getMessage());
+        }
+        sizeEstimator.record(val, writer.size() - begin - length, writer.bytes() != array);
+        bytes.setUnsafeBytes(writer.bytes());
+        bytes.setRealSize(writer.size() - begin);
+        if (encoding == USASCIIEncoding.INSTANCE) {
+            bytes.setEncoding(UTF8Encoding.INSTANCE);
+        }
+        bytes.invalidate();
+        string.clearCodeRange();
+    }
+
+    /**
+     * Writes the value at the position of the buffer, which is left at the
+     * position it had if the value doesn't fit.
+     */
+    private void putInto(ThreadContext context, IRubyObject val, final ByteBuffer target) {
+        Ruby ruby = context.getRuntime();
+        if (target.isReadOnly()) {
+            throw ruby.newArgumentError("buffer is read-only");
+        }
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                target.put((byte)b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                target.put(bytes, offset, length);
+            }
+        };
+        int position = target.position();
+        byte[] buffer = takeOutputBuffer();
+        Utf8JsonWriter writer = new Utf8JsonWriter(out, buffer);
+        configure(writer);
+        try {
+            encodeDocument(writer, context, val);
+            writer.flush();
+        } catch (BufferOverflowException ex) {
+            target.position(position);
+            throw EncodeError.newEncodeError(ruby, "buffer is full");
+        } catch (Exception ex) {
+            target.position(position);
+            throw EncodeError.newEncodeError(ruby, ex.getMessage());
+        } finally {
+            giveBackOutputBuffer(buffer);
+        }
+    }
+
+    /**
+     * Encodes the value to a Java WritableByteChannel or FileChannel, or to
+     * the channel of a Ruby File, and returns the number of bytes written.
+     * With the :position option a FileChannel is written at that offset.
+     */
+    @JRubyMethod(name = "encode_to_channel", required = 2, optional = 1)
+    public IRubyObject encodeToChannel(ThreadContext context, IRubyObject[] args) {
+        Ruby ruby = context.getRuntime();
+        long position = -1;
+        if (args.length > 2) {
+            if (!(args[2] instanceof RubyHash)) {
+                throw ruby.newArgumentError("expected Hash for options argument");
+            }
+            RubyHash options = (RubyHash)args[2];
+            RubySymbol name = ruby.newSymbol("position");
+            if (options.containsKey(name)) {
+                position = RubyNumeric.num2long(options.op_aref(context, name));
+                if (position < 0) {
+                    throw ruby.newArgumentError("position must not be negative");
+                }
+            }
+        }
+
+        Object target;
+        if (args[1] instanceof RubyIO) {
+            RubyIO io = (RubyIO)args[1];
+            // whatever Ruby has buffered goes first
+            io.flush();
+            target = io.getChannel();
+        } else {
+            target = args[1].toJava(Object.class);
+        }
+        if (!(target instanceof WritableByteChannel)) {
+            throw ruby.newArgumentError("Unsupported target. This method accepts WritableByteChannel or File");
+        }
+        if (position >= 0 && !(target instanceof FileChannel)) {
+            throw ruby.newArgumentError("position is only supported for files");
+        }
+
+        ChannelOutputStream out = new ChannelOutputStream((WritableByteChannel)target, position);
+        byte[] buffer = takeOutputBuffer();
+        Utf8JsonWriter writer = new Utf8JsonWriter(out, buffer);
+        configure(writer);
+        try {
+            encodeDocument(writer, context, args[0]);
+            writer.flush();
+        } catch (Exception ex) {
+            throw EncodeError.newEncodeError(ruby, ex.getMessage());
+        } finally {
+            giveBackOutputBuffer(buffer);
+            out.close();
+        }
+        return ruby.newFixnum(out.written());
+    }
+
+    /**
+     * Returns Gson::Encoder::Stream writing to the IO. With a block the
+     * stream is yielded and closed afterwards. The :threshold option sets
+     * how many bytes of output may be buffered before the stream writes
+     * them to the IO and waits for it to flush, buffer_size by default.
+     */
+    @JRubyMethod(required = 1, optional = 1)
+    public IRubyObject stream(ThreadContext context, IRubyObject[] args, Block block) {
         Ruby ruby = context.getRuntime();
+        int threshold = this.bufferSize;
+        if (args.length > 1) {
+            if (!(args[1] instanceof RubyHash)) {
+                throw ruby.newArgumentError("expected Hash for options argument");
+            }
+            RubyHash options = (RubyHash)args[1];
+            RubySymbol name = ruby.newSymbol("threshold");
+            if (options.containsKey(name)) {
+                threshold = RubyNumeric.num2int(options.op_aref(context, name));
+                if (threshold < 16) {
+                    throw ruby.newArgumentError("threshold must be at least 16 bytes");
+                }
+            }
+        }
+        IRubyObject io = args[0];
+        if (!(io instanceof RubyIO) && !(io instanceof RubyStringIO)) {
+            throw ruby.newArgumentError("Unsupported target. This method accepts IO");
+        }
+        IRubyObject out = IOJavaAddons.AnyIO.any_to_outputstream(context, io);
+        RubyClass streamClass = ruby.getModule("Gson").getClass("Encoder").getClass("Stream");
+        EncoderStream stream = new EncoderStream(ruby, streamClass, this,
+                                                 (OutputStream)out.toJava(OutputStream.class), threshold);
+        if (!block.isGiven()) {
+            return stream;
+        }
+        IRubyObject result = block.yield(context, stream);
+        stream.close(context);
+        return result;
+    }
+
+    /**
+     * Takes the buffer of IO output. as_json may encode with this encoder
+     * again, and other threads may share it, so the buffer is taken
+     * atomically and the others get a new one while it is in use.
+     */
+    private byte[] takeOutputBuffer() {
+        byte[] buffer = this.outputBuffer.getAndSet(null);
+        if (buffer == null || buffer.length != this.bufferSize) {
+            buffer = new byte[this.bufferSize];
+        }
+        return buffer;
+    }
+
+    /**
+     * Keeps the buffer for the next call, unless another call has given
+     * back its buffer first.
+     */
+    private void giveBackOutputBuffer(byte[] buffer) {
+        this.outputBuffer.compareAndSet(null, buffer);
+    }
+
+    void configure(Utf8JsonWriter writer) {
+        writer.setLenient(this.lenient);
+        writer.setHtmlSafe(this.htmlSafe);
+        writer.setIndent(this.indent);
+        writer.setSerializeNulls(this.serializeNulls);
+    }
+
+    /**
+     * Returns the bytes of the in-memory writer. The writer's array becomes
+     * the string, unless most of it is unused, which only happens for
+     * outputs so small that copying them is cheaper than keeping the array.
+     */
+    private static ByteList result(Utf8JsonWriter writer) {
+        byte[] bytes = writer.bytes();
+        int size = writer.size();
+        if (size < bytes.length / 2) {
+            byte[] copy = new byte[size];
+            System.arraycopy(bytes, 0, copy, 0, size);
+            bytes = copy;
+        }
+        return new ByteList(bytes, 0, size, UTF8Encoding.INSTANCE, false);
+    }
+
+    /**
+     * Returns the bytes of the string if they are valid UTF-8, and null for
+     * other encodings, broken strings and other objects, which are written
+     * as Java strings. Symbols keep a Java string of their own, so they are
+     * never copied.
+     */
+    private static ByteList utf8Bytes(ThreadContext context, IRubyObject val) {
+        if (!(val instanceof RubyString)) {
+            return null;
+        }
+        RubyString string = (RubyString)val;
+        ByteList bytes = string.getByteList();
+        Encoding encoding = bytes.getEncoding();
+        if ((encoding == UTF8Encoding.INSTANCE || encoding == USASCIIEncoding.INSTANCE) &&
+            string.valid_encoding_p(context).isTrue()) {
+            return bytes;
+        }
+        return null;
+    }
+
+    /**
+     * Writes the name of an object member, from the name cache if the key
+     * is cacheable.
+     */
+    void encodeName(Utf8JsonWriter writer, ThreadContext context, IRubyObject key)
+        throws IOException {
+        byte[] encoded = nameCache.get(key);
+        if (encoded == null && NameCache.isCacheable(key)) {
+            encoded = cacheName(writer, context, key);
+        }
+        if (encoded != null) {
+            writer.encodedName(encoded);
+            return;
+        }
+        ByteList bytes = utf8Bytes(context, key);
+        if (bytes != null) {
+            writer.name(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+        } else {
+            writer.name(key.toString());
+        }
+    }
 
+    /**
+     * Encodes the name of a cacheable key and puts it into the name cache.
+     */
+    private byte[] cacheName(Utf8JsonWriter writer, ThreadContext context, IRubyObject key)
+        throws IOException {
+        ByteList bytes = utf8Bytes(context, key);
+        byte[] encoded;
+        if (bytes != null) {
+            encoded = writer.encodeName(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+        } else {
+            encoded = writer.encodeName(key.toString());
+        }
+        nameCache.put(key, encoded);
+        return encoded;
+    }
+
+    /**
+     * Writes a value with the settings of this encoder. Serializers call
+     * it for the values nested in theirs.
+     */
+    public void encodeValue(Utf8JsonWriter writer, ThreadContext context, IRubyObject val)
+        throws IOException {
+        encodeValue(writer, context, val, true);
+    }
+
+    /**
+     * @param callbacks false on the workers of parallel encoding, which
+     *     give up with {@link SerialFallback} where Ruby would be called
+     */
+    private void encodeValue(Utf8JsonWriter writer, ThreadContext context, IRubyObject val, boolean callbacks)
+        throws IOException {
         if (val.isNil()) {
             writer.nullValue();
         } else if (val instanceof RubyHash) {
             writer.beginObject();
             for (Object obj : ((RubyHash)val).directEntrySet()) {
                 RubyHash.RubyHashEntry item = (RubyHash.RubyHashEntry)obj;
-                writer.name(item.getKey().toString());
-                encodeValue(writer, context, (IRubyObject)item.getValue());
+                encodeMember(writer, context, (IRubyObject)item.getKey(), (IRubyObject)item.getValue(), callbacks);
             }
             writer.endObject();
         } else if (val instanceof RubyArray) {
+            RubyArray array = (RubyArray)val;
             writer.beginArray();
-            for (IRubyObject item : ((RubyArray)val).toJavaArray()) {
-                encodeValue(writer, context, item);
+            HashShape shape = array.getLength() > 1 ? null : HashShape.NONE;
+            // as_json may change the array, so its length is checked every time
+            for (int i = 0; i < array.getLength(); i++) {
+                shape = encodeElement(writer, context, array.eltInternal(i), shape, callbacks);
             }
             writer.endArray();
         } else if (val instanceof RubyString || val instanceof RubySymbol) {
-            writer.value(val.toString());
-        } else if (val instanceof RubyInteger) {
-            try {
-                writer.value(((RubyInteger)val).getLongValue());
-            } catch (RaiseException ex) {
-                if ("RangeError".equals(ex.getException().getType().getName())) {
-                    writer.value(((RubyInteger)val).getBigIntegerValue());
-                } else {
-                    throw ex;
-                }
-            }
+            encodeString(writer, context, val);
+        } else if (val instanceof RubyFixnum) {
+            writer.value(((RubyFixnum)val).getLongValue());
+        } else if (val instanceof RubyBignum) {
+            writer.value(((RubyBignum)val).getValue());
         } else if (val instanceof RubyFloat) {
-            writer.value((Double)((RubyFloat)val).getDoubleValue());
+            writer.value(((RubyFloat)val).getDoubleValue());
         } else if (val instanceof RubyBoolean) {
             writer.value(val.isTrue());
-        } else if (val.respondsTo("as_json")) {
-            encodeValue(writer, context, val.callMethod(context, "as_json", this.options));
-        } else if (val.respondsTo("to_s")) {
-            writer.value(val.toString());
+        } else if (callbacks) {
+            encodeObject(writer, context, val);
+        } else {
+            throw SerialFallback.INSTANCE;
+        }
+    }
+
+    /**
+     * Encodes an element of an array and returns the shape for the next
+     * one. A hash with the keys of the shape is written with its names,
+     * otherwise the hash becomes the new shape. Once a shape is replaced
+     * without having matched another hash, the rest of the array is
+     * written without shapes.
+     *
+     * @param shape the shape of a hash before, null for none yet
+     */
+    private HashShape encodeElement(Utf8JsonWriter writer, ThreadContext context, IRubyObject val,
+                                    HashShape shape, boolean callbacks) throws IOException {
+        if (!(val instanceof RubyHash) || shape == HashShape.NONE) {
+            encodeValue(writer, context, val, callbacks);
+            return shape;
+        }
+        RubyHash hash = (RubyHash)val;
+        if (shape == null || !shape.match(hash)) {
+            if (shape != null && !shape.isReused()) {
+                encodeValue(writer, context, val, callbacks);
+                return HashShape.NONE;
+            }
+            shape = newShape(writer, context, hash);
+            if (shape == null) {
+                encodeValue(writer, context, val, callbacks);
+                return HashShape.NONE;
+            }
+        }
+        writer.beginObject();
+        for (int i = 0; i < shape.size(); i++) {
+            encodeShapedMember(writer, context, shape.name(i), shape.value(i), callbacks);
+        }
+        writer.endObject();
+        return shape;
+    }
+
+    /**
+     * Returns the shape of the hash with the values of the hash, or null if
+     * any of its keys isn't cacheable.
+     */
+    private HashShape newShape(Utf8JsonWriter writer, ThreadContext context, RubyHash hash)
+        throws IOException {
+        int size = hash.size();
+        if (size == 0 || size > HashShape.MAX_KEYS) {
+            return null;
+        }
+        IRubyObject[] keys = new IRubyObject[size];
+        byte[][] names = new byte[size][];
+        IRubyObject[] values = new IRubyObject[size];
+        int i = 0;
+        for (Object obj : hash.directEntrySet()) {
+            RubyHash.RubyHashEntry item = (RubyHash.RubyHashEntry)obj;
+            IRubyObject key = (IRubyObject)item.getKey();
+            if (i == size || !NameCache.isCacheable(key)) {
+                return null;
+            }
+            byte[] name = nameCache.get(key);
+            if (name == null) {
+                name = cacheName(writer, context, key);
+            }
+            keys[i] = key;
+            names[i] = name;
+            values[i] = (IRubyObject)item.getValue();
+            i++;
+        }
+        return i == size ? new HashShape(keys, names, values) : null;
+    }
+
+    /**
+     * Writes a member with the encoded name of a shape. Strings and numbers
+     * are written along with the name, other values after it.
+     */
+    private void encodeShapedMember(Utf8JsonWriter writer, ThreadContext context, byte[] name, IRubyObject val,
+                                    boolean callbacks) throws IOException {
+        if (val instanceof RubyString) {
+            ByteList bytes = utf8Bytes(context, val);
+            if (bytes != null) {
+                writer.member(name, bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+                return;
+            }
+        } else if (val instanceof RubyFixnum) {
+            writer.member(name, ((RubyFixnum)val).getLongValue());
+            return;
+        } else if (val instanceof RubyFloat) {
+            writer.member(name, ((RubyFloat)val).getDoubleValue());
+            return;
+        } else if (val.isNil() && !this.serializeNulls) {
+            return;
+        }
+        writer.member(name);
+        encodeValue(writer, context, val, callbacks);
+    }
+
+    private void encodeMember(Utf8JsonWriter writer, ThreadContext context, IRubyObject key, IRubyObject val,
+                              boolean callbacks) throws IOException {
+        if (!callbacks && !(key instanceof RubyString) && !(key instanceof RubySymbol)) {
+            // the name of any other key comes from its to_s
+            throw SerialFallback.INSTANCE;
+        }
+        encodeName(writer, context, key);
+        encodeValue(writer, context, val, callbacks);
+    }
+
+    /**
+     * Thrown by the workers of parallel encoding when a value would call
+     * back into Ruby, which only happens on the caller's thread.
+     */
+    private static final class SerialFallback extends RuntimeException {
+        static final long serialVersionUID = 8796652365231277318L;
+        static final SerialFallback INSTANCE = new SerialFallback();
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * Encodes a top-level value. With parallelism, large arrays and hashes
+     * are cut into slices. The caller's thread encodes the first slice into
+     * the writer, while each of the others is encoded by a worker into a
+     * writer of its own and spliced in afterwards, in order. The workers
+     * never call back into Ruby: a slice holding an object which needs
+     * as_json, to_s or each is encoded by the caller's thread instead.
+     */
+    private void encodeDocument(Utf8JsonWriter writer, ThreadContext context, IRubyObject val)
+        throws IOException {
+        int count = 0;
+        if (this.parallelism > 1) {
+            if (val instanceof RubyArray) {
+                count = ((RubyArray)val).getLength();
+            } else if (val instanceof RubyHash) {
+                count = ((RubyHash)val).size();
+            }
+        }
+        if (count < PARALLEL_MIN_ELEMENTS) {
+            encodeValue(writer, context, val);
+            return;
+        }
+
+        final IRubyObject[] keys;
+        final IRubyObject[] values;
+        if (val instanceof RubyArray) {
+            keys = null;
+            values = ((RubyArray)val).toJavaArray();
+            writer.beginArray();
+        } else {
+            keys = new IRubyObject[count];
+            values = new IRubyObject[count];
+            int i = 0;
+            for (Object obj : ((RubyHash)val).directEntrySet()) {
+                RubyHash.RubyHashEntry item = (RubyHash.RubyHashEntry)obj;
+                keys[i] = (IRubyObject)item.getKey();
+                values[i] = (IRubyObject)item.getValue();
+                i++;
+            }
+            writer.beginObject();
+        }
+
+        final Ruby ruby = context.getRuntime();
+        int slices = Math.min(this.parallelism, count / PARALLEL_MIN_SLICE);
+        List<Future<Utf8JsonWriter>> futures = new ArrayList<Future<Utf8JsonWriter>>(slices);
+        try {
+            for (int slice = 1; slice < slices; slice++) {
+                final int from = (int)((long)count * slice / slices);
+                final int to = (int)((long)count * (slice + 1) / slices);
+                futures.add(workers().submit(new Callable<Utf8JsonWriter>() {
+                    public Utf8JsonWriter call() throws IOException {
+                        Utf8JsonWriter segment = new Utf8JsonWriter();
+                        configure(segment);
+                        if (keys == null) {
+                            segment.beginArray();
+                        } else {
+                            segment.beginObject();
+                        }
+                        try {
+                            encodeSlice(segment, ruby.getCurrentContext(), keys, values, from, to, false);
+                        } catch (SerialFallback ex) {
+                            return null;
+                        }
+                        if (keys == null) {
+                            segment.endArray();
+                        } else {
+                            segment.endObject();
+                        }
+                        return segment;
+                    }
+                }));
+            }
+            encodeSlice(writer, context, keys, values, 0, count / slices, true);
+            for (int slice = 1; slice < slices; slice++) {
+                Utf8JsonWriter segment = futures.get(slice - 1).get();
+                if (segment != null) {
+                    writer.splice(segment);
+                } else {
+                    encodeSlice(writer, context, keys, values,
+                                (int)((long)count * slice / slices), (int)((long)count * (slice + 1) / slices), true);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while encoding");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(cause.getMessage());
+        } finally {
+            for (Future<Utf8JsonWriter> future : futures) {
+                future.cancel(true);
+            }
+        }
+        if (keys == null) {
+            writer.endArray();
+        } else {
+            writer.endObject();
+        }
+    }
+
+    private void encodeSlice(Utf8JsonWriter writer, ThreadContext context, IRubyObject[] keys,
+                             IRubyObject[] values, int from, int to, boolean callbacks) throws IOException {
+        HashShape shape = null;
+        for (int i = from; i < to; i++) {
+            if (keys == null) {
+                shape = encodeElement(writer, context, values[i], shape, callbacks);
+            } else {
+                encodeMember(writer, context, keys[i], values[i], callbacks);
+            }
+        }
+    }
+
+    private ExecutorService workers() {
+        ExecutorService pool = workers.get();
+        if (pool != null) {
+            return pool;
+        }
+        // idle threads of a cached pool go away after a minute
+        pool = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "gson-encode");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (!workers.compareAndSet(null, pool)) {
+            // another thread got there first, this pool has no threads yet
+            pool.shutdown();
+        }
+        return workers.get();
+    }
+
+    /**
+     * Encodes the elements yielded by each as an array, one at a time as
+     * they are yielded, so enumerators and cursors are never collected.
+     * Several values yielded at once become an array themselves.
+     */
+    private void encodeElements(final Utf8JsonWriter writer, final ThreadContext context, IRubyObject val)
+        throws IOException {
+        final Ruby ruby = context.getRuntime();
+        final HashShape[] shape = new HashShape[1];
+        writer.beginArray();
+        try {
+            RubyEnumerable.callEach19(ruby, context, val, Arity.OPTIONAL, new BlockCallback() {
+                public IRubyObject call(ThreadContext context, IRubyObject[] args, Block block) {
+                    IRubyObject element;
+                    if (args.length == 0) {
+                        element = context.nil;
+                    } else if (args.length == 1) {
+                        element = args[0];
+                    } else {
+                        element = RubyArray.newArrayNoCopy(ruby, args);
+                    }
+                    try {
+                        shape[0] = encodeElement(writer, context, element, shape[0], true);
+                    } catch (IOException ex) {
+                        throw new ElementException(ex);
+                    }
+                    return context.nil;
+                }
+            });
+        } catch (ElementException ex) {
+            throw (IOException)ex.getCause();
+        }
+        writer.endArray();
+    }
+
+    /**
+     * Carries the IOException of an element out of the block.
+     */
+    private static class ElementException extends RuntimeException {
+        static final long serialVersionUID = 4196804502694418237L;
+
+        ElementException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private void encodeString(Utf8JsonWriter writer, ThreadContext context, IRubyObject val)
+        throws IOException {
+        ByteList bytes = utf8Bytes(context, val);
+        if (bytes != null) {
+            writer.value(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
         } else {
-            writer.value(val.anyToString().toString());
+            writer.value(val.toString());
+        }
+    }
+
+    /**
+     * Encodes an instance of a class other than the core types, calling
+     * the method found by the dispatch cache.
+     */
+    private void encodeObject(Utf8JsonWriter writer, ThreadContext context, IRubyObject val)
+        throws IOException {
+        RubyClass klass = val.getMetaClass();
+        DispatchCache.Entry entry = dispatchCache.get(klass);
+        switch (entry.strategy) {
+            case DispatchCache.SERIALIZER:
+                entry.serializer.serialize(this, writer, context, val);
+                break;
+            case DispatchCache.EACH:
+                encodeElements(writer, context, val);
+                break;
+            case DispatchCache.AS_JSON:
+                encodeValue(writer, context, entry.method.call(context, val, klass, "as_json", this.options));
+                break;
+            case DispatchCache.TO_S:
+                encodeString(writer, context, entry.method.call(context, val, klass, "to_s").convertToString());
+                break;
+            case DispatchCache.ANY_TO_S:
+                writer.value(val.anyToString().toString());
+                break;
+            default:
+                if (val.respondsTo("as_json")) {
+                    encodeValue(writer, context, val.callMethod(context, "as_json", this.options));
+                } else if (val.respondsTo("to_s")) {
+                    writer.value(val.toString());
+                } else {
+                    writer.value(val.anyToString().toString());
+                }
         }
-        writer.flush();
     }
 
 }
@@ -0,0 +1,182 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import com.google.gson.stream.Utf8JsonWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.jruby.Ruby;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyClass;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Writes a document to an IO piece by piece, created by Encoder#stream.
+ * Containers are opened and closed explicitly, while every value, however
+ * deep, is encoded with the settings of the encoder.
+ *
+ * <p>The output is buffered up to the threshold. Once it is exceeded the
+ * buffer is written to the IO and the IO is flushed, so a producer which
+ * is faster than the IO is held back instead of buffering more output.
+ */
+@JRubyClass(name = "Gson::Encoder::Stream")
+public class EncoderStream extends RubyObject {
+
+    static final long serialVersionUID = -3281178067455064230L;
+
+    /**
+     * Flushes the IO after each write, and leaves it open on close, since
+     * the IO belongs to the caller.
+     */
+    private static class FlushingOutputStream extends FilterOutputStream {
+
+        FlushingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    private final Encoder encoder;
+    private final Utf8JsonWriter writer;
+    private boolean closed = false;
+
+    EncoderStream(Ruby ruby, RubyClass rubyClass, Encoder encoder, OutputStream out, int threshold) {
+        super(ruby, rubyClass);
+        this.encoder = encoder;
+        this.writer = new Utf8JsonWriter(new FlushingOutputStream(out), new byte[threshold]);
+        encoder.configure(this.writer);
+    }
+
+    @JRubyMethod(name = "begin_array")
+    public IRubyObject beginArray(ThreadContext context) {
+        try {
+            writer.beginArray();
+        } catch (Exception ex) {
+            throw Encoder.EncodeError.newEncodeError(context.getRuntime(), ex.getMessage());
+        }
+        return this;
+    }
+
+    @JRubyMethod(name = "end_array")
+    public IRubyObject endArray(ThreadContext context) {
+        try {
+            writer.endArray();
+        } catch (Exception ex) {
+            throw Encoder.EncodeError.newEncodeError(context.getRuntime(), ex.getMessage());
+        }
+        return this;
+    }
+
+    @JRubyMethod(name = "begin_object")
+    public IRubyObject beginObject(ThreadContext context) {
+        try {
+            writer.beginObject();
+        } catch (Exception ex) {
+            throw Encoder.EncodeError.newEncodeError(context.getRuntime(), ex.getMessage());
+        }
+        return this;
+    }
+
+    @JRubyMethod(name = "end_object")
+    public IRubyObject endObject(ThreadContext context) {
+        try {
+            writer.endObject();
+        } catch (Exception ex) {
+            throw Encoder.EncodeError.newEncodeError(context.getRuntime(), ex.getMessage());
+        }
+        return this;
+    }
+
+    /**
+     * Writes the name of the next member of the current object.
+     */
+    @JRubyMethod
+    public IRubyObject name(ThreadContext context, IRubyObject key) {
+        try {
+            encoder.encodeName(writer, context, key);
+        } catch (Exception ex) {
+            throw Encoder.EncodeError.newEncodeError(context.getRuntime(), ex.getMessage());
+        }
+        return this;
+    }
+
+    /**
+     * Encodes a complete value, an element of the current array or the
+     * value of the member named last.
+     */
+    @JRubyMethod(name = {"value", "<<"})
+    public IRubyObject value(ThreadContext context, IRubyObject val) {
+        try {
+            encoder.encodeValue(writer, context, val);
+        } catch (Exception ex) {
+            throw Encoder.EncodeError.newEncodeError(context.getRuntime(), ex.getMessage());
+        }
+        return this;
+    }
+
+    /**
+     * Writes the buffered output to the IO and flushes it.
+     */
+    @JRubyMethod
+    public IRubyObject flush(ThreadContext context) {
+        try {
+            writer.flush();
+        } catch (Exception ex) {
+            throw Encoder.EncodeError.newEncodeError(context.getRuntime(), ex.getMessage());
+        }
+        return this;
+    }
+
+    /**
+     * Flushes the output, leaving the IO open, and raises
+     * Gson::EncodeError if the document is incomplete.
+     */
+    @JRubyMethod
+    public IRubyObject close(ThreadContext context) {
+        if (closed) {
+            return context.nil;
+        }
+        closed = true;
+        try {
+            writer.close();
+        } catch (Exception ex) {
+            throw Encoder.EncodeError.newEncodeError(context.getRuntime(), ex.getMessage());
+        }
+        return context.nil;
+    }
+
+    @JRubyMethod(name = "closed?")
+    public IRubyObject isClosed(ThreadContext context) {
+        return RubyBoolean.newBoolean(context.getRuntime(), closed);
+    }
+
+}
@@ -16,6 +16,8 @@
 
 import gson_ext.Decoder;
 import gson_ext.Encoder;
+import gson_ext.EncoderStream;
+import gson_ext.LazyDocument;
 import java.io.IOException;
 import org.jruby.Ruby;
 import org.jruby.RubyClass;
@@ -29,11 +31,14 @@ public class GsonExtService implements BasicLibraryService {
     public boolean basicLoad(final Ruby ruby) throws IOException {
         RubyModule gson = ruby.defineModule("Gson");
 
-        gson.defineClassUnder("Encoder", ruby.getObject(), new ObjectAllocator() {
+        RubyClass encoder = gson.defineClassUnder("Encoder", ruby.getObject(), new ObjectAllocator() {
             public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
                 return new Encoder(ruby, rubyClass);
             }
-        }).defineAnnotatedMethods(Encoder.class);
+        });
+        encoder.defineAnnotatedMethods(Encoder.class);
+        encoder.defineClassUnder("Stream", ruby.getObject(),
+                ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR).defineAnnotatedMethods(EncoderStream.class);
 
         gson.defineClassUnder("Decoder", ruby.getObject(), new ObjectAllocator() {
             public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
@@ -41,6 +46,11 @@ public class GsonExtService implements BasicLibraryService {
             }
         }).defineAnnotatedMethods(Decoder.class);
 
+        RubyClass lazyDocument = gson.defineClassUnder("LazyDocument", ruby.getObject(),
+                ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        lazyDocument.includeModule(ruby.getEnumerable());
+        lazyDocument.defineAnnotatedMethods(LazyDocument.class);
+
         RubyClass standardError = ruby.getStandardError();
         gson.defineClassUnder("DecodeError", standardError, standardError.getAllocator());
         gson.defineClassUnder("EncodeError", standardError, standardError.getAllocator());
@@ -0,0 +1,115 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import org.jruby.RubyHash;
+import org.jruby.RubyString;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * The keys of a hash, in order, with their names as the writer encodes
+ * them. The hashes of an array mostly have the same keys, like the rows of
+ * a list, so the encoder keeps the shape of a hash while it writes the
+ * array, and writes the following hashes with the same keys with the names
+ * of the shape, without looking them up and without deferring them in the
+ * writer.
+ *
+ * <p>Keys are matched by identity, and strings by their bytes and encoding
+ * as well, since the hashes built one by one hold copies of their string
+ * keys. Only symbols and frozen strings make up a shape. Shapes belong to a
+ * single array being encoded, so they are never shared between threads.
+ */
+class HashShape {
+
+    /** Stands for giving up on the shapes for the rest of an array */
+    static final HashShape NONE = new HashShape(new IRubyObject[0], new byte[0][], new IRubyObject[0]);
+
+    static final int MAX_KEYS = 64;
+
+    private final IRubyObject[] keys;
+    private final byte[][] names;
+    /* The values of the hash matched last */
+    private final IRubyObject[] values;
+    private boolean reused = false;
+
+    /**
+     * @param values the values of the hash the shape is taken from
+     */
+    HashShape(IRubyObject[] keys, byte[][] names, IRubyObject[] values) {
+        this.keys = keys;
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * Returns true if the hash has the keys of this shape in the same
+     * order, and takes its values.
+     */
+    public boolean match(RubyHash hash) {
+        int size = keys.length;
+        if (hash.size() != size) {
+            return false;
+        }
+        int i = 0;
+        for (Object obj : hash.directEntrySet()) {
+            RubyHash.RubyHashEntry item = (RubyHash.RubyHashEntry)obj;
+            if (i == size || !sameKey((IRubyObject)item.getKey(), keys[i])) {
+                return false;
+            }
+            values[i++] = (IRubyObject)item.getValue();
+        }
+        if (i != size) {
+            return false;
+        }
+        reused = true;
+        return true;
+    }
+
+    /**
+     * Returns true once a hash other than the one the shape is taken from
+     * has matched.
+     */
+    public boolean isReused() {
+        return reused;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public byte[] name(int index) {
+        return names[index];
+    }
+
+    public IRubyObject value(int index) {
+        return values[index];
+    }
+
+    private static boolean sameKey(IRubyObject key, IRubyObject expected) {
+        if (key == expected) {
+            return true;
+        }
+        if (!(key instanceof RubyString) || !(expected instanceof RubyString)) {
+            return false;
+        }
+        ByteList bytes = ((RubyString)key).getByteList();
+        ByteList expectedBytes = ((RubyString)expected).getByteList();
+        return bytes.getEncoding() == expectedBytes.getEncoding() && bytes.equal(expectedBytes);
+    }
+
+}
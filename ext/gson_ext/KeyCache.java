@@ -0,0 +1,147 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyString;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * A bounded cache of decoded hash keys, which maps the UTF-8 bytes of a
+ * name to a single frozen string or symbol. Frozen strings are stored in a
+ * hash without being duplicated, so a cached key costs no allocation at all.
+ *
+ * <p>The cache is direct mapped: a new key simply replaces whatever occupied
+ * its slot, and long keys are not cached, so its size stays bounded whatever
+ * the input is. The slots hold immutable entries, which makes the cache safe
+ * to share between threads.
+ */
+class KeyCache {
+
+    private static final class Entry {
+        final byte[] bytes;
+        final IRubyObject key;
+
+        Entry(byte[] bytes, IRubyObject key) {
+            this.bytes = bytes;
+            this.key = key;
+        }
+    }
+
+    static final int DEFAULT_SIZE = 1024;
+    static final int MAX_KEY_LENGTH = 64;
+
+    private final Ruby ruby;
+    private final boolean symbols;
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+
+    /**
+     * @param size the number of slots, must be a power of two
+     */
+    public KeyCache(Ruby ruby, boolean symbols, int size) {
+        this.ruby = ruby;
+        this.symbols = symbols;
+        this.entries = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+    }
+
+    public KeyCache(Ruby ruby, boolean symbols) {
+        this(ruby, symbols, DEFAULT_SIZE);
+    }
+
+    /**
+     * Returns the cache shared by all decoders of the runtime.
+     */
+    public static KeyCache shared(Ruby ruby, boolean symbols) {
+        RubyClass decoderClass = ruby.getModule("Gson").getClass("Decoder");
+        String name = symbols ? "shared_symbol_key_cache" : "shared_string_key_cache";
+        synchronized (decoderClass) {
+            KeyCache cache = (KeyCache)decoderClass.getInternalVariable(name);
+            if (cache == null) {
+                cache = new KeyCache(ruby, symbols);
+                decoderClass.setInternalVariable(name, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Returns the key for the name, which is a frozen string or a symbol.
+     * Names longer than {@link #MAX_KEY_LENGTH} bytes get a new string.
+     */
+    public IRubyObject get(byte[] bytes, int start, int length) {
+        if (length > MAX_KEY_LENGTH) {
+            return newKey(bytes, start, length);
+        }
+
+        // Compute an arbitrary hash of the content
+        int hashCode = 0;
+        for (int i = start; i < start + length; i++) {
+            hashCode = (hashCode * 31) + bytes[i];
+        }
+
+        // Pick a bucket using Doug Lea's supplemental secondaryHash function (from HashMap)
+        hashCode ^= (hashCode >>> 20) ^ (hashCode >>> 12);
+        hashCode ^= (hashCode >>> 7) ^ (hashCode >>> 4);
+        int index = hashCode & mask;
+
+        Entry entry = entries.get(index);
+        if (entry != null && matches(entry.bytes, bytes, start, length)) {
+            return entry.key;
+        }
+
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, start, copy, 0, length);
+        IRubyObject key;
+        if (symbols) {
+            key = ruby.newSymbol(new ByteList(copy, UTF8Encoding.INSTANCE, false));
+        } else {
+            // frozen strings never modify the array, so the entry shares it
+            RubyString string = RubyString.newStringNoCopy(ruby, new ByteList(copy, UTF8Encoding.INSTANCE, false));
+            string.setFrozen(true);
+            key = string;
+        }
+        entries.lazySet(index, new Entry(copy, key));
+        return key;
+    }
+
+    private IRubyObject newKey(byte[] bytes, int start, int length) {
+        ByteList value = new ByteList(bytes, start, length, UTF8Encoding.INSTANCE, true);
+        if (symbols) {
+            return ruby.newSymbol(value);
+        }
+        return RubyString.newStringNoCopy(ruby, value);
+    }
+
+    private static boolean matches(byte[] cached, byte[] bytes, int start, int length) {
+        if (cached.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (cached[i] != bytes[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,535 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import com.google.gson.stream.JsonHandler;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.Utf8JsonReader;
+import com.google.gson.stream.Utf8JsonWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyBignum;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyClass;
+import org.jruby.RubyEnumerator;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyInteger;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.RubySymbol;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * A read-only view of an object or an array of a document decoded with
+ * Decoder#decode_lazy. The document is parsed once into a flat tape of
+ * nodes, which records where every value is in the source, and Ruby
+ * objects are created only for the values that are actually accessed.
+ * Nested objects and arrays are returned as further lazy documents.
+ */
+@JRubyClass(name = "Gson::LazyDocument")
+public class LazyDocument extends RubyObject {
+
+    static final long serialVersionUID = -3372507423173296410L;
+
+    /* Kinds of the tape nodes */
+    private static final int OBJECT = 1;
+    private static final int ARRAY = 2;
+    private static final int NAME = 3;
+    private static final int STRING = 4;
+    private static final int LONG = 5;
+    private static final int BIG_INTEGER = 6;
+    private static final int FRACTION = 7;
+    private static final int TRUE = 8;
+    private static final int FALSE = 9;
+    private static final int NULL = 10;
+    /** Set on names and strings whose unescaped bytes are kept in the tape. */
+    private static final int ESCAPED = 0x10;
+
+    /**
+     * The nodes of a document in source order. A node is a container, a
+     * name or a scalar value. Each node knows the position of its bytes
+     * (a long value is split into both ints) and the index of the node
+     * following it, which for a container is the node after its last child.
+     */
+    static final class Tape {
+        final Ruby ruby;
+        final RubyClass documentClass;
+        final byte[] source;
+        final boolean symbolizeKeys;
+        final KeyCache keyCache;
+
+        int[] kinds = new int[64];
+        int[] starts = new int[64];
+        int[] lengths = new int[64];
+        int[] ends = new int[64];
+        int size = 0;
+
+        byte[] escaped = new byte[0];
+        int escapedLength = 0;
+
+        Tape(Ruby ruby, byte[] source, boolean symbolizeKeys, KeyCache keyCache) {
+            this.ruby = ruby;
+            this.documentClass = ruby.getModule("Gson").getClass("LazyDocument");
+            this.source = source;
+            this.symbolizeKeys = symbolizeKeys;
+            this.keyCache = keyCache;
+        }
+
+        private int add(int kind, int start, int length) {
+            if (size == kinds.length) {
+                int newLength = size * 2;
+                kinds = grow(kinds, newLength);
+                starts = grow(starts, newLength);
+                lengths = grow(lengths, newLength);
+                ends = grow(ends, newLength);
+            }
+            kinds[size] = kind;
+            starts[size] = start;
+            lengths[size] = length;
+            ends[size] = size + 1;
+            return size++;
+        }
+
+        private static int[] grow(int[] array, int newLength) {
+            int[] newArray = new int[newLength];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            return newArray;
+        }
+
+        private void addBytes(int kind, Utf8JsonReader reader) {
+            byte[] bytes = reader.valueBytes();
+            int start = reader.valueStart();
+            int length = reader.valueLength();
+            if (bytes == source) {
+                add(kind, start, length);
+                return;
+            }
+            if (escapedLength + length > escaped.length) {
+                byte[] newEscaped = new byte[Math.max(escaped.length * 2, escapedLength + length)];
+                System.arraycopy(escaped, 0, newEscaped, 0, escapedLength);
+                escaped = newEscaped;
+            }
+            System.arraycopy(bytes, start, escaped, escapedLength, length);
+            add(kind | ESCAPED, escapedLength, length);
+            escapedLength += length;
+        }
+
+        private void addLong(long value) {
+            add(LONG, (int)(value >>> 32), (int)value);
+        }
+
+        private long longValue(int node) {
+            return ((long)starts[node] << 32) | (lengths[node] & 0xffffffffL);
+        }
+
+        private byte[] bytes(int node) {
+            return (kinds[node] & ESCAPED) != 0 ? escaped : source;
+        }
+
+        private int kind(int node) {
+            return kinds[node] & ~ESCAPED;
+        }
+
+        /**
+         * Reports the subtree of the node to the handler.
+         */
+        void replay(int node, JsonHandler handler) {
+            int[] open = new int[16];
+            int depth = 0;
+            int end = ends[node];
+            for (int i = node; i < end; i++) {
+                while (depth > 0 && ends[open[depth - 1]] == i) {
+                    closeContainer(open[--depth], handler);
+                }
+                switch (kind(i)) {
+                    case OBJECT:
+                    case ARRAY:
+                        if (kind(i) == OBJECT) {
+                            handler.beginObject();
+                        } else {
+                            handler.beginArray();
+                        }
+                        if (depth == open.length) {
+                            open = grow(open, depth * 2);
+                        }
+                        open[depth++] = i;
+                        break;
+                    case NAME:
+                        handler.name(bytes(i), starts[i], lengths[i]);
+                        break;
+                    case STRING:
+                        handler.string(bytes(i), starts[i], lengths[i]);
+                        break;
+                    case LONG:
+                        handler.number(longValue(i));
+                        break;
+                    case BIG_INTEGER:
+                    case FRACTION:
+                        handler.number(source, starts[i], lengths[i], kind(i) == FRACTION);
+                        break;
+                    case TRUE:
+                    case FALSE:
+                        handler.bool(kind(i) == TRUE);
+                        break;
+                    default:
+                        handler.nullValue();
+                }
+            }
+            while (depth > 0) {
+                closeContainer(open[--depth], handler);
+            }
+        }
+
+        private void closeContainer(int node, JsonHandler handler) {
+            if (kind(node) == OBJECT) {
+                handler.endObject();
+            } else {
+                handler.endArray();
+            }
+        }
+
+        /**
+         * Returns the Ruby value of the node: a lazy document for containers,
+         * the value itself for scalars.
+         */
+        IRubyObject value(int node) {
+            switch (kind(node)) {
+                case OBJECT:
+                case ARRAY:
+                    return new LazyDocument(ruby, documentClass, this, node);
+                case STRING:
+                    return RubyString.newStringNoCopy(ruby,
+                            new ByteList(bytes(node), starts[node], lengths[node], UTF8Encoding.INSTANCE, true));
+                case LONG:
+                    return RubyFixnum.newFixnum(ruby, longValue(node));
+                case FRACTION:
+                    return RubyFloat.newFloat(ruby, DocumentBuilder.parseDouble(source, starts[node], lengths[node]));
+                case BIG_INTEGER:
+                    return RubyBignum.newBignum(ruby, new BigInteger(
+                            DocumentBuilder.asciiString(source, starts[node], lengths[node])));
+                case TRUE:
+                case FALSE:
+                    return RubyBoolean.newBoolean(ruby, kind(node) == TRUE);
+                default:
+                    return ruby.getNil();
+            }
+        }
+
+        IRubyObject key(int node) {
+            if (keyCache != null) {
+                return keyCache.get(bytes(node), starts[node], lengths[node]);
+            }
+            ByteList name = new ByteList(bytes(node), starts[node], lengths[node], UTF8Encoding.INSTANCE, true);
+            if (symbolizeKeys) {
+                return ruby.newSymbol(name);
+            }
+            return RubyString.newStringNoCopy(ruby, name);
+        }
+
+        /**
+         * Materializes the whole subtree of the node.
+         */
+        IRubyObject build(int node) {
+            DocumentBuilder builder = new DocumentBuilder(ruby, symbolizeKeys, keyCache);
+            replay(node, builder);
+            return builder.nextDocument();
+        }
+
+        boolean nameEquals(int node, ByteList name) {
+            int length = lengths[node];
+            if (name.getRealSize() != length) {
+                return false;
+            }
+            byte[] bytes = bytes(node);
+            byte[] other = name.getUnsafeBytes();
+            int start = starts[node];
+            int otherStart = name.getBegin();
+            for (int i = 0; i < length; i++) {
+                if (bytes[start + i] != other[otherStart + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Parses the first top-level value of the reader into a tape. Returns a
+     * lazy document for an object or an array, the value itself for a scalar
+     * and nil for an empty source.
+     */
+    static IRubyObject parse(Utf8JsonReader reader, Tape tape) throws IOException {
+        int[] open = new int[32];
+        int depth = 0;
+        while (true) {
+            JsonToken token = reader.peek();
+            switch (token) {
+                case BEGIN_ARRAY:
+                case BEGIN_OBJECT:
+                    if (token == JsonToken.BEGIN_ARRAY) {
+                        reader.beginArray();
+                    } else {
+                        reader.beginObject();
+                    }
+                    if (depth == open.length) {
+                        open = Tape.grow(open, depth * 2);
+                    }
+                    open[depth++] = tape.add(token == JsonToken.BEGIN_ARRAY ? ARRAY : OBJECT, 0, 0);
+                    break;
+                case END_ARRAY:
+                case END_OBJECT:
+                    if (token == JsonToken.END_ARRAY) {
+                        reader.endArray();
+                    } else {
+                        reader.endObject();
+                    }
+                    tape.ends[open[--depth]] = tape.size;
+                    break;
+                case NAME:
+                    reader.consumeName();
+                    tape.addBytes(NAME, reader);
+                    break;
+                case STRING:
+                    reader.consumeString();
+                    tape.addBytes(STRING, reader);
+                    break;
+                case NUMBER:
+                    if (reader.hasLong()) {
+                        tape.addLong(reader.nextLong());
+                    } else {
+                        int kind = reader.isFractional() ? FRACTION : BIG_INTEGER;
+                        reader.consumeString();
+                        tape.add(kind, reader.valueStart(), reader.valueLength());
+                    }
+                    break;
+                case BOOLEAN:
+                    tape.add(reader.nextBoolean() ? TRUE : FALSE, 0, 0);
+                    break;
+                case NULL:
+                    reader.nextNull();
+                    tape.add(NULL, 0, 0);
+                    break;
+                case END_DOCUMENT:
+                    return tape.ruby.getNil();
+                default:
+                    throw new IllegalStateException("Unknown token: " + token);
+            }
+            if (depth == 0) {
+                // only the first top-level value is returned, the rest is checked and skipped
+                while (reader.peek() != JsonToken.END_DOCUMENT) {
+                    reader.skipValue();
+                }
+                return tape.value(0);
+            }
+        }
+    }
+
+    /**
+     * Writes a document as the object or the array it views, member by
+     * member, so that nested documents are written the same way and the
+     * tape is never built into Ruby hashes and arrays.
+     */
+    static final Serializer SERIALIZER = new Serializer() {
+        public void serialize(Encoder encoder, Utf8JsonWriter writer, ThreadContext context, IRubyObject value)
+            throws IOException {
+            ((LazyDocument)value).write(encoder, writer, context);
+        }
+    };
+
+    private final Tape tape;
+    private final int node;
+
+    LazyDocument(Ruby ruby, RubyClass rubyClass, Tape tape, int node) {
+        super(ruby, rubyClass);
+        this.tape = tape;
+        this.node = node;
+    }
+
+    private boolean isObject() {
+        return tape.kind(node) == OBJECT;
+    }
+
+    /**
+     * Returns the node of the member value with the given name, or -1. Of
+     * several members with the name the last one wins, as in a decoded
+     * Hash.
+     */
+    private int findMember(IRubyObject name) {
+        ByteList bytes;
+        if (name instanceof RubyString) {
+            bytes = ((RubyString)name).getByteList();
+        } else if (name instanceof RubySymbol) {
+            bytes = ((RubySymbol)name).asString().getByteList();
+        } else {
+            return -1;
+        }
+        int found = -1;
+        int end = tape.ends[node];
+        for (int i = node + 1; i < end; i = tape.ends[i + 1]) {
+            if (tape.nameEquals(i, bytes)) {
+                found = i + 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the node of the element at the index, or -1.
+     */
+    private int findElement(long index) {
+        if (index < 0) {
+            index += count();
+            if (index < 0) {
+                return -1;
+            }
+        }
+        int end = tape.ends[node];
+        for (int i = node + 1; i < end; i = tape.ends[i]) {
+            if (index-- == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int count() {
+        int count = 0;
+        int end = tape.ends[node];
+        for (int i = node + 1; i < end; i = tape.ends[i]) {
+            count++;
+        }
+        return isObject() ? count / 2 : count;
+    }
+
+    @JRubyMethod(name = "[]")
+    public IRubyObject op_aref(ThreadContext context, IRubyObject key) {
+        int found;
+        if (isObject()) {
+            found = findMember(key);
+        } else if (key instanceof RubyInteger) {
+            found = findElement(RubyNumeric.num2long(key));
+        } else {
+            throw context.getRuntime().newTypeError("no implicit conversion from " + key.getMetaClass() + " to integer");
+        }
+        return found < 0 ? context.nil : tape.value(found);
+    }
+
+    @JRubyMethod(required = 1, rest = true)
+    public IRubyObject dig(ThreadContext context, IRubyObject[] keys) {
+        IRubyObject value = this;
+        for (IRubyObject key : keys) {
+            if (value instanceof LazyDocument) {
+                value = ((LazyDocument)value).op_aref(context, key);
+            } else if (value.isNil()) {
+                return value;
+            } else {
+                // the values of a document other than containers are scalars
+                throw context.getRuntime().newTypeError(value.getMetaClass().getRealClass() +
+                                                        " does not have #dig method");
+            }
+        }
+        return value;
+    }
+
+    private void write(Encoder encoder, Utf8JsonWriter writer, ThreadContext context) throws IOException {
+        int end = tape.ends[node];
+        if (isObject()) {
+            writer.beginObject();
+            for (int i = node + 1; i < end; i = tape.ends[i + 1]) {
+                encoder.encodeName(writer, context, tape.key(i));
+                encoder.encodeValue(writer, context, tape.value(i + 1));
+            }
+            writer.endObject();
+        } else {
+            writer.beginArray();
+            for (int i = node + 1; i < end; i = tape.ends[i]) {
+                encoder.encodeValue(writer, context, tape.value(i));
+            }
+            writer.endArray();
+        }
+    }
+
+    @JRubyMethod
+    public IRubyObject each(ThreadContext context, Block block) {
+        Ruby ruby = context.getRuntime();
+        if (!block.isGiven()) {
+            return RubyEnumerator.enumeratorize(ruby, this, "each");
+        }
+        int end = tape.ends[node];
+        if (isObject()) {
+            for (int i = node + 1; i < end; i = tape.ends[i + 1]) {
+                block.yield(context, RubyArray.newArray(ruby, tape.key(i), tape.value(i + 1)));
+            }
+        } else {
+            for (int i = node + 1; i < end; i = tape.ends[i]) {
+                block.yield(context, tape.value(i));
+            }
+        }
+        return this;
+    }
+
+    @JRubyMethod
+    public IRubyObject keys(ThreadContext context) {
+        Ruby ruby = context.getRuntime();
+        RubyArray keys = RubyArray.newArray(ruby);
+        if (isObject()) {
+            int end = tape.ends[node];
+            for (int i = node + 1; i < end; i = tape.ends[i + 1]) {
+                keys.append(tape.key(i));
+            }
+        }
+        return keys;
+    }
+
+    @JRubyMethod(name = {"size", "length"})
+    public IRubyObject size(ThreadContext context) {
+        return RubyFixnum.newFixnum(context.getRuntime(), count());
+    }
+
+    @JRubyMethod(name = "object?")
+    public IRubyObject isObject(ThreadContext context) {
+        return RubyBoolean.newBoolean(context.getRuntime(), isObject());
+    }
+
+    @JRubyMethod
+    public IRubyObject to_h(ThreadContext context) {
+        if (!isObject()) {
+            throw context.getRuntime().newTypeError("can't convert JSON array into Hash");
+        }
+        return tape.build(node);
+    }
+
+    @JRubyMethod
+    public IRubyObject to_a(ThreadContext context) {
+        IRubyObject value = tape.build(node);
+        if (isObject()) {
+            return value.callMethod(context, "to_a");
+        }
+        return value;
+    }
+
+}
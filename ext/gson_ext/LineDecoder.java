@@ -0,0 +1,321 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.Utf8JsonReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.jruby.Ruby;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Decodes newline delimited documents (JSON Lines) on several threads.
+ * The caller's thread cuts the input into batches of whole lines, the
+ * workers decode every line of a batch with a builder of their own, and
+ * the documents are yielded back on the caller's thread, either in the
+ * order of the input or in the order the batches complete.
+ *
+ * <p>At most two batches per worker are in flight, so the input is never
+ * read much ahead of the block.
+ */
+class LineDecoder {
+
+    static final int BATCH_SIZE = 64 * 1024;
+
+    private final Ruby ruby;
+    private final boolean lenient;
+    private final boolean symbolizeKeys;
+    private final KeyCache keyCache;
+    private final PathProjection projection;
+    private final int parallelism;
+    private final boolean ordered;
+
+    /* Line number of the first line of the next batch */
+    private int lineNumber = 1;
+
+    private ExecutorService executor;
+    private CompletionService<Batch> completion;
+    private final LinkedList<Future<Batch>> pending = new LinkedList<Future<Batch>>();
+
+    /**
+     * A slice of whole lines, which becomes the list of their documents.
+     */
+    private class Batch implements Callable<Batch> {
+        final byte[] bytes;
+        final int start;
+        final int end;
+        final int firstLine;
+        List<IRubyObject> documents;
+
+        Batch(byte[] bytes, int start, int end, int firstLine) {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+            this.firstLine = firstLine;
+        }
+
+        public Batch call() throws IOException {
+            DocumentBuilder builder = new DocumentBuilder(ruby, symbolizeKeys, keyCache);
+            int line = firstLine;
+            int lineStart = start;
+            while (lineStart < end) {
+                int lineEnd = indexOf(bytes, (byte)'\n', lineStart, end);
+                if (lineEnd < 0) {
+                    lineEnd = end;
+                }
+                if (isBlank(bytes, lineStart, lineEnd)) {
+                    line++;
+                    lineStart = lineEnd + 1;
+                    continue;
+                }
+                Utf8JsonReader reader = new Utf8JsonReader(bytes, lineStart, lineEnd - lineStart);
+                reader.setLenient(lenient);
+                try {
+                    while (reader.peek() != JsonToken.END_DOCUMENT) {
+                        if (projection != null) {
+                            projection.readValue(reader, builder);
+                        } else {
+                            Decoder.readValue(reader, builder);
+                        }
+                    }
+                } catch (RaiseException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new IOException(String.format("line %d: %s", line, ex.getMessage()), ex);
+                }
+                line++;
+                lineStart = lineEnd + 1;
+            }
+            documents = new ArrayList<IRubyObject>();
+            while (builder.hasDocument()) {
+                documents.add(builder.nextDocument());
+            }
+            return this;
+        }
+    }
+
+    public LineDecoder(Ruby ruby, boolean lenient, boolean symbolizeKeys, KeyCache keyCache,
+                       PathProjection projection, int parallelism, boolean ordered) {
+        this.ruby = ruby;
+        this.lenient = lenient;
+        this.symbolizeKeys = symbolizeKeys;
+        this.keyCache = keyCache;
+        this.projection = projection;
+        this.parallelism = parallelism;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Yields the documents of every line of the bytes.
+     */
+    public void decode(ThreadContext context, byte[] bytes, int offset, int length, Block block) {
+        start();
+        try {
+            int end = offset + length;
+            int batchStart = offset;
+            while (batchStart < end) {
+                int batchEnd = Math.min(batchStart + BATCH_SIZE, end);
+                if (batchEnd < end) {
+                    int newline = indexOf(bytes, (byte)'\n', batchEnd, end);
+                    batchEnd = newline < 0 ? end : newline + 1;
+                }
+                submit(context, bytes, batchStart, batchEnd, block);
+                batchStart = batchEnd;
+            }
+            drain(context, block);
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Yields the documents of every line of the stream.
+     */
+    public void decode(ThreadContext context, InputStream in, Block block) {
+        start();
+        try {
+            byte[] buffer = new byte[BATCH_SIZE];
+            int limit = 0;
+            int count;
+            while ((count = in.read(buffer, limit, buffer.length - limit)) != -1) {
+                limit += count;
+                if (limit < buffer.length) {
+                    continue;
+                }
+                int newline = lastIndexOf(buffer, (byte)'\n', limit);
+                if (newline < 0) {
+                    // a line longer than the buffer
+                    byte[] newBuffer = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, newBuffer, 0, limit);
+                    buffer = newBuffer;
+                    continue;
+                }
+                // the batch keeps the buffer, the rest of the input goes to a new one
+                byte[] newBuffer = new byte[Math.max(BATCH_SIZE, limit - newline - 1)];
+                System.arraycopy(buffer, newline + 1, newBuffer, 0, limit - newline - 1);
+                submit(context, buffer, 0, newline + 1, block);
+                limit = limit - newline - 1;
+                buffer = newBuffer;
+            }
+            if (limit > 0) {
+                submit(context, buffer, 0, limit, block);
+            }
+            drain(context, block);
+        } catch (IOException ex) {
+            throw ruby.newIOErrorFromException(ex);
+        } finally {
+            stop();
+        }
+    }
+
+    private void start() {
+        if (parallelism <= 1) {
+            return;
+        }
+        executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "gson-decode-lines");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (!ordered) {
+            // ordered batches are taken from pending, which would leave
+            // their futures in the queue of a completion service
+            completion = new ExecutorCompletionService<Batch>(executor);
+        }
+    }
+
+    private void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            completion = null;
+        }
+        pending.clear();
+    }
+
+    private void submit(ThreadContext context, byte[] bytes, int start, int end, Block block) {
+        Batch batch = new Batch(bytes, start, end, lineNumber);
+        lineNumber += countLines(bytes, start, end);
+        if (executor == null) {
+            // a single thread decodes the lines right away
+            try {
+                yieldDocuments(context, batch.call(), block);
+            } catch (IOException ex) {
+                throw Decoder.DecodeError.newDecodeError(ruby, ex.getMessage());
+            }
+            return;
+        }
+        pending.add(ordered ? executor.submit(batch) : completion.submit(batch));
+        if (pending.size() >= parallelism * 2) {
+            yieldDocuments(context, next(), block);
+        }
+    }
+
+    private void drain(ThreadContext context, Block block) {
+        while (!pending.isEmpty()) {
+            yieldDocuments(context, next(), block);
+        }
+    }
+
+    /**
+     * Waits for the next batch, the oldest one if the documents are
+     * ordered, otherwise the first one to complete.
+     */
+    private Batch next() {
+        try {
+            Future<Batch> future;
+            if (ordered) {
+                future = pending.removeFirst();
+            } else {
+                future = completion.take();
+                pending.remove(future);
+            }
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw Decoder.DecodeError.newDecodeError(ruby, "interrupted while decoding lines");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RaiseException) {
+                throw (RaiseException)cause;
+            }
+            throw Decoder.DecodeError.newDecodeError(ruby, cause.getMessage());
+        }
+    }
+
+    private void yieldDocuments(ThreadContext context, Batch batch, Block block) {
+        for (IRubyObject document : batch.documents) {
+            block.yield(context, document);
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] bytes, byte b, int end) {
+        for (int i = end - 1; i >= 0; i--) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isBlank(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = bytes[i];
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int countLines(byte[] bytes, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.jruby.RubyString;
+import org.jruby.RubySymbol;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * The encoder's counterpart of {@link KeyCache}: it maps hash keys to the
+ * bytes {@link com.google.gson.stream.Utf8JsonWriter#encodeName} prepares
+ * for them, quoted, escaped and followed by the separator, so that a key
+ * seen before is written with a single copy instead of being escaped again.
+ *
+ * <p>Keys are looked up by identity, so only symbols and frozen strings,
+ * whose content never changes, are cached. Like {@link KeyCache} the cache
+ * is direct mapped and bounded, and its slots hold immutable entries.
+ */
+class NameCache {
+
+    private static final class Entry {
+        final IRubyObject key;
+        final byte[] encoded;
+
+        Entry(IRubyObject key, byte[] encoded) {
+            this.key = key;
+            this.encoded = encoded;
+        }
+    }
+
+    static final int DEFAULT_SIZE = 512;
+    static final int MAX_KEY_LENGTH = 64;
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+
+    /**
+     * @param size the number of slots, must be a power of two
+     */
+    public NameCache(int size) {
+        this.entries = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+    }
+
+    public NameCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Returns true for the keys this cache can hold: symbols and short
+     * frozen strings.
+     */
+    public static boolean isCacheable(IRubyObject key) {
+        if (key instanceof RubySymbol) {
+            return true;
+        }
+        return key instanceof RubyString && key.isFrozen() &&
+            ((RubyString)key).getByteList().getRealSize() <= MAX_KEY_LENGTH;
+    }
+
+    /**
+     * Returns the encoded name of the key, or null if it isn't cached.
+     */
+    public byte[] get(IRubyObject key) {
+        Entry entry = entries.get(System.identityHashCode(key) & mask);
+        if (entry != null && entry.key == key) {
+            return entry.encoded;
+        }
+        return null;
+    }
+
+    /**
+     * Remembers the encoded name of a cacheable key, replacing whatever
+     * occupied its slot.
+     */
+    public void put(IRubyObject key, byte[] encoded) {
+        entries.lazySet(System.identityHashCode(key) & mask, new Entry(key, encoded));
+    }
+
+}
@@ -0,0 +1,439 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import com.google.gson.stream.JsonHandler;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.Utf8JsonReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyEncoding;
+import org.jruby.RubyString;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Selects parts of the decoded documents, as given by the :only option of
+ * the decoder. Paths like "user.id" or "entities.urls[*].expanded_url" are
+ * compiled into a tree of nodes, one per name or array index. Everything
+ * outside of the selected paths is skipped by the reader, so it creates no
+ * Ruby objects and its strings are never unescaped. The containers leading
+ * to the selected values are kept, so the result has the same shape as the
+ * document.
+ */
+class PathProjection {
+
+    private static final Pattern SEGMENT = Pattern.compile("([^.\\[\\]]*)((?:\\[(?:\\*|\\d+)\\])*)");
+    private static final Pattern INDEX = Pattern.compile("\\[(\\*|\\d+)\\]");
+
+    /**
+     * A position in the document. A selected node takes the whole value,
+     * otherwise only the members and elements with nodes of their own.
+     */
+    static final class Node {
+        boolean selected;
+        List<byte[]> names = new ArrayList<byte[]>();
+        List<Node> members = new ArrayList<Node>();
+        Node anyElement;
+        Map<Integer, Node> elements = new HashMap<Integer, Node>();
+
+        Node member(byte[] bytes, int start, int length) {
+            for (int i = 0; i < names.size(); i++) {
+                byte[] name = names.get(i);
+                if (name.length == length && matches(name, bytes, start)) {
+                    return members.get(i);
+                }
+            }
+            return null;
+        }
+
+        Node element(int index) {
+            Node node = elements.get(index);
+            return node != null ? node : anyElement;
+        }
+
+        private Node addMember(byte[] name) {
+            Node node = member(name, 0, name.length);
+            if (node == null) {
+                node = new Node();
+                names.add(name);
+                members.add(node);
+            }
+            return node;
+        }
+
+        private Node addElement(String index) {
+            if (index.equals("*")) {
+                if (anyElement == null) {
+                    anyElement = new Node();
+                }
+                return anyElement;
+            }
+            Integer key = Integer.valueOf(index);
+            Node node = elements.get(key);
+            if (node == null) {
+                node = new Node();
+                elements.put(key, node);
+            }
+            return node;
+        }
+
+        /**
+         * Makes the nodes of specific indexes select what "[*]" selects as well.
+         */
+        private void mergeAnyElement() {
+            for (Node member : members) {
+                member.mergeAnyElement();
+            }
+            if (anyElement != null) {
+                anyElement.mergeAnyElement();
+                for (Node element : elements.values()) {
+                    element.merge(anyElement);
+                }
+            }
+        }
+
+        private void merge(Node other) {
+            selected |= other.selected;
+            for (int i = 0; i < other.names.size(); i++) {
+                addMember(other.names.get(i)).merge(other.members.get(i));
+            }
+            if (other.anyElement != null) {
+                if (anyElement == null) {
+                    anyElement = new Node();
+                }
+                anyElement.merge(other.anyElement);
+            }
+            for (Map.Entry<Integer, Node> entry : other.elements.entrySet()) {
+                addElement(entry.getKey().toString()).merge(entry.getValue());
+            }
+        }
+
+        private static boolean matches(byte[] name, byte[] bytes, int start) {
+            for (int i = 0; i < name.length; i++) {
+                if (name[i] != bytes[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Node root;
+
+    private PathProjection(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Compiles a path or an array of paths.
+     */
+    public static PathProjection compile(Ruby ruby, IRubyObject paths) {
+        RubyArray list;
+        if (paths instanceof RubyArray) {
+            list = (RubyArray)paths;
+        } else if (paths instanceof RubyString) {
+            list = RubyArray.newArray(ruby, paths);
+        } else {
+            throw ruby.newArgumentError("expected String or Array of Strings for :only option");
+        }
+        Node root = new Node();
+        for (int i = 0; i < list.getLength(); i++) {
+            IRubyObject path = list.eltInternal(i);
+            if (!(path instanceof RubyString)) {
+                throw ruby.newArgumentError("expected String or Array of Strings for :only option");
+            }
+            addPath(ruby, root, path.asJavaString());
+        }
+        root.mergeAnyElement();
+        return new PathProjection(root);
+    }
+
+    private static void addPath(Ruby ruby, Node root, String path) {
+        Node node = root;
+        String[] segments = path.split("\\.", -1);
+        for (int i = 0; i < segments.length; i++) {
+            Matcher segment = SEGMENT.matcher(segments[i]);
+            if (!segment.matches() || (segment.group(1).length() == 0 && (i > 0 || segment.group(2).length() == 0))) {
+                throw ruby.newArgumentError("invalid path: " + path);
+            }
+            if (segment.group(1).length() > 0) {
+                node = node.addMember(RubyEncoding.encodeUTF8(segment.group(1)));
+            }
+            Matcher index = INDEX.matcher(segment.group(2));
+            while (index.find()) {
+                node = node.addElement(index.group(1));
+            }
+        }
+        node.selected = true;
+    }
+
+    /**
+     * Reads one value and reports the selected parts of it to the handler.
+     */
+    public void readValue(Utf8JsonReader reader, JsonHandler handler) throws IOException {
+        readValue(reader, root, handler);
+    }
+
+    private void readValue(Utf8JsonReader reader, Node node, JsonHandler handler) throws IOException {
+        if (node.selected) {
+            Decoder.readValue(reader, handler);
+            return;
+        }
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                handler.beginObject();
+                while (reader.hasNext()) {
+                    reader.consumeName();
+                    Node member = node.member(reader.valueBytes(), reader.valueStart(), reader.valueLength());
+                    if (member == null) {
+                        reader.skipValue();
+                    } else if (member.selected) {
+                        handler.name(reader.valueBytes(), reader.valueStart(), reader.valueLength());
+                        Decoder.readValue(reader, handler);
+                    } else {
+                        // peek() may refill the buffer under the name, so keep a copy of it
+                        byte[] name = new byte[reader.valueLength()];
+                        System.arraycopy(reader.valueBytes(), reader.valueStart(), name, 0, name.length);
+                        if (isContainer(reader.peek())) {
+                            handler.name(name, 0, name.length);
+                            readValue(reader, member, handler);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                }
+                reader.endObject();
+                handler.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                handler.beginArray();
+                for (int index = 0; reader.hasNext(); index++) {
+                    Node element = node.element(index);
+                    if (element == null || !(element.selected || isContainer(reader.peek()))) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    readValue(reader, element, handler);
+                }
+                reader.endArray();
+                handler.endArray();
+                break;
+            default:
+                reader.skipValue();
+        }
+    }
+
+    private static boolean isContainer(JsonToken token) {
+        return token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY;
+    }
+
+    /**
+     * Returns a handler which passes the selected parts of the values to
+     * the target handler, for the input of the push parser.
+     */
+    public JsonHandler filter(JsonHandler target) {
+        return new Filter(target);
+    }
+
+    private final class Filter implements JsonHandler {
+        private final JsonHandler target;
+
+        /* The nodes of the filtered containers, and the next index of arrays */
+        private Node[] nodes = new Node[16];
+        private int[] indexes = new int[16];
+        private int depth = 0;
+
+        /* Depth inside of a selected value, which passes as a whole */
+        private int selectedDepth = 0;
+        /* Depth inside of a skipped value */
+        private int skippedDepth = 0;
+
+        /* The node of the member whose name is held back until its value starts */
+        private Node memberNode;
+        private byte[] memberName = new byte[64];
+        private int memberNameLength;
+
+        Filter(JsonHandler target) {
+            this.target = target;
+        }
+
+        /**
+         * Returns the node of the value which is about to start, or null if
+         * it is skipped. Emits the held back name of a selected member.
+         */
+        private Node nextNode(boolean container) {
+            Node node;
+            if (depth == 0) {
+                node = root;
+            } else if (indexes[depth - 1] >= 0) {
+                node = nodes[depth - 1].element(indexes[depth - 1]++);
+            } else {
+                node = memberNode;
+                memberNode = null;
+            }
+            if (node == null || !(node.selected || container)) {
+                return null;
+            }
+            if (depth > 0 && indexes[depth - 1] < 0) {
+                target.name(memberName, 0, memberNameLength);
+            }
+            return node;
+        }
+
+        private boolean passes() {
+            return selectedDepth > 0;
+        }
+
+        private void begin(boolean array) {
+            if (skippedDepth > 0) {
+                skippedDepth++;
+                return;
+            }
+            if (passes()) {
+                selectedDepth++;
+            } else {
+                Node node = nextNode(true);
+                if (node == null) {
+                    skippedDepth = 1;
+                    return;
+                }
+                if (node.selected) {
+                    selectedDepth = 1;
+                } else {
+                    if (depth == nodes.length) {
+                        Node[] newNodes = new Node[depth * 2];
+                        System.arraycopy(nodes, 0, newNodes, 0, depth);
+                        nodes = newNodes;
+                        int[] newIndexes = new int[depth * 2];
+                        System.arraycopy(indexes, 0, newIndexes, 0, depth);
+                        indexes = newIndexes;
+                    }
+                    nodes[depth] = node;
+                    indexes[depth] = array ? 0 : -1;
+                    depth++;
+                }
+            }
+            if (array) {
+                target.beginArray();
+            } else {
+                target.beginObject();
+            }
+        }
+
+        private void end(boolean array) {
+            if (skippedDepth > 0) {
+                skippedDepth--;
+                return;
+            }
+            if (passes()) {
+                selectedDepth--;
+            } else {
+                depth--;
+                nodes[depth] = null;
+            }
+            if (array) {
+                target.endArray();
+            } else {
+                target.endObject();
+            }
+        }
+
+        /**
+         * Returns true if the scalar value which is about to start passes.
+         */
+        private boolean scalar() {
+            if (skippedDepth > 0) {
+                return false;
+            }
+            return passes() || nextNode(false) != null;
+        }
+
+        public void beginArray() {
+            begin(true);
+        }
+
+        public void endArray() {
+            end(true);
+        }
+
+        public void beginObject() {
+            begin(false);
+        }
+
+        public void endObject() {
+            end(false);
+        }
+
+        public void name(byte[] bytes, int start, int length) {
+            if (skippedDepth > 0) {
+                return;
+            }
+            if (passes()) {
+                target.name(bytes, start, length);
+                return;
+            }
+            memberNode = nodes[depth - 1].member(bytes, start, length);
+            if (memberNode != null) {
+                if (length > memberName.length) {
+                    memberName = new byte[length];
+                }
+                System.arraycopy(bytes, start, memberName, 0, length);
+                memberNameLength = length;
+            }
+        }
+
+        public void string(byte[] bytes, int start, int length) {
+            if (scalar()) {
+                target.string(bytes, start, length);
+            }
+        }
+
+        public void number(long value) {
+            if (scalar()) {
+                target.number(value);
+            }
+        }
+
+        public void number(byte[] bytes, int start, int length, boolean fractional) {
+            if (scalar()) {
+                target.number(bytes, start, length, fractional);
+            }
+        }
+
+        public void bool(boolean value) {
+            if (scalar()) {
+                target.bool(value);
+            }
+        }
+
+        public void nullValue() {
+            if (scalar()) {
+                target.nullValue();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import com.google.gson.stream.Utf8JsonWriter;
+import java.io.IOException;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Writes the instances of a Ruby class without calling back into Ruby.
+ * Serializers are registered with <code>Gson::Encoder#register_serializer</code>
+ * and apply to the class and its subclasses. They must write exactly one
+ * value, and may hand nested values back to {@link Encoder#encodeValue}.
+ */
+public interface Serializer {
+
+    void serialize(Encoder encoder, Utf8JsonWriter writer, ThreadContext context, IRubyObject value)
+        throws IOException;
+
+}
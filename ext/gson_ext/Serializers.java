@@ -0,0 +1,189 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import com.google.gson.stream.Utf8JsonWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.joda.time.DateTime;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyStruct;
+import org.jruby.RubyTime;
+import org.jruby.ext.bigdecimal.RubyBigDecimal;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * The serializers of the <code>:native_types</code> option, keyed by the
+ * name of the class they apply to, since most of these classes are only
+ * defined once their library is required.
+ */
+class Serializers {
+
+    /**
+     * Time as ISO 8601 with milliseconds, for example
+     * "2012-12-11T09:39:05.000Z", or with the offset of a local time.
+     */
+    static final Serializer TIME = new Serializer() {
+        public void serialize(Encoder encoder, Utf8JsonWriter writer, ThreadContext context, IRubyObject value)
+            throws IOException {
+            RubyTime time = (RubyTime)value;
+            DateTime dateTime = time.getDateTime();
+            byte[] bytes = new byte[32];
+            int length = 0;
+            int year = dateTime.getYear();
+            if (year < 0) {
+                bytes[length++] = '-';
+                year = -year;
+            }
+            if (year > 9999) {
+                length = digits(bytes, length, year / 10000, String.valueOf(year / 10000).length());
+            }
+            length = digits(bytes, length, year % 10000, 4);
+            bytes[length++] = '-';
+            length = digits(bytes, length, dateTime.getMonthOfYear(), 2);
+            bytes[length++] = '-';
+            length = digits(bytes, length, dateTime.getDayOfMonth(), 2);
+            bytes[length++] = 'T';
+            length = digits(bytes, length, dateTime.getHourOfDay(), 2);
+            bytes[length++] = ':';
+            length = digits(bytes, length, dateTime.getMinuteOfHour(), 2);
+            bytes[length++] = ':';
+            length = digits(bytes, length, dateTime.getSecondOfMinute(), 2);
+            bytes[length++] = '.';
+            length = digits(bytes, length, dateTime.getMillisOfSecond(), 3);
+            if (time.gmt().isTrue()) {
+                bytes[length++] = 'Z';
+            } else {
+                int offset = dateTime.getZone().getOffset(dateTime.getMillis()) / 60000;
+                bytes[length++] = (byte)(offset < 0 ? '-' : '+');
+                offset = Math.abs(offset);
+                length = digits(bytes, length, offset / 60, 2);
+                bytes[length++] = ':';
+                length = digits(bytes, length, offset % 60, 2);
+            }
+            writer.value(bytes, 0, length);
+        }
+    };
+
+    /**
+     * Date and DateTime are implemented in Ruby, so they are asked for
+     * their ISO 8601 form directly, skipping as_json. In 1.8 mode they have
+     * no iso8601 and are encoded as usual, see {@link #appliesTo}.
+     */
+    static final Serializer DATE = new Serializer() {
+        public void serialize(Encoder encoder, Utf8JsonWriter writer, ThreadContext context, IRubyObject value)
+            throws IOException {
+            encoder.encodeValue(writer, context, value.callMethod(context, "iso8601"));
+        }
+    };
+
+    /**
+     * BigDecimal as a number with all of its digits.
+     */
+    static final Serializer BIG_DECIMAL = new Serializer() {
+        public void serialize(Encoder encoder, Utf8JsonWriter writer, ThreadContext context, IRubyObject value)
+            throws IOException {
+            RubyBigDecimal decimal = (RubyBigDecimal)value;
+            if (decimal.nan_p().isTrue()) {
+                writer.value(Double.NaN);
+                return;
+            }
+            IRubyObject infinite = decimal.infinite_p();
+            if (!infinite.isNil()) {
+                writer.value(infinite.convertToInteger().getLongValue() * Double.POSITIVE_INFINITY);
+                return;
+            }
+            writer.value(decimal.getValue());
+        }
+    };
+
+    /**
+     * Struct as an object of its members.
+     */
+    static final Serializer STRUCT = new Serializer() {
+        public void serialize(Encoder encoder, Utf8JsonWriter writer, ThreadContext context, IRubyObject value)
+            throws IOException {
+            RubyStruct struct = (RubyStruct)value;
+            RubyArray members = struct.members19();
+            writer.beginObject();
+            for (int i = 0; i < members.size(); i++) {
+                encoder.encodeName(writer, context, members.eltInternal(i));
+                encoder.encodeValue(writer, context, struct.get(i));
+            }
+            writer.endObject();
+        }
+    };
+
+    /**
+     * Set as an array of its elements, read from the hash behind it.
+     * Subclasses such as SortedSet may order their elements differently,
+     * so they are converted with to_a.
+     */
+    static final Serializer SET = new Serializer() {
+        public void serialize(Encoder encoder, Utf8JsonWriter writer, ThreadContext context, IRubyObject value)
+            throws IOException {
+            IRubyObject hash = value.getInstanceVariables().getInstanceVariable("@hash");
+            if (!"Set".equals(value.getMetaClass().getRealClass().getName()) || !(hash instanceof RubyHash)) {
+                encoder.encodeValue(writer, context, value.callMethod(context, "to_a"));
+                return;
+            }
+            writer.beginArray();
+            for (Object key : ((RubyHash)hash).directKeySet()) {
+                encoder.encodeValue(writer, context, (IRubyObject)key);
+            }
+            writer.endArray();
+        }
+    };
+
+    /**
+     * Returns false if the class lacks the method the serializer relies
+     * on, so that its instances are encoded as if the option was off.
+     */
+    static boolean appliesTo(Serializer serializer, RubyClass klass) {
+        if (serializer == DATE) {
+            return !klass.searchMethod("iso8601").isUndefined();
+        }
+        return true;
+    }
+
+    static Map<String, Serializer> builtins() {
+        Map<String, Serializer> serializers = new HashMap<String, Serializer>();
+        serializers.put("Time", TIME);
+        serializers.put("Date", DATE);
+        serializers.put("DateTime", DATE);
+        serializers.put("BigDecimal", BIG_DECIMAL);
+        serializers.put("Struct", STRUCT);
+        serializers.put("Set", SET);
+        return serializers;
+    }
+
+    /**
+     * Writes the value as {@code width} digits, padded with zeros.
+     */
+    private static int digits(byte[] bytes, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            bytes[i] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        return offset + width;
+    }
+
+}
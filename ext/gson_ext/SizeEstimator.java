@@ -0,0 +1,129 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package gson_ext;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Guesses how large the output of the next encode call will be, from the
+ * outputs of the previous calls with roots of the same class, so that the
+ * writer starts with an array which rarely has to grow.
+ *
+ * <p>Arrays and hashes are estimated per element, since documents of the
+ * same kind mostly differ in their number of rows. The estimate jumps up to
+ * any larger output and decays slowly towards smaller ones, and the writer
+ * gets an eighth more on top of it.
+ *
+ * <p>The estimator also counts the calls whose output fitted (hits) and
+ * the ones which had to grow (misses), and keeps a histogram of the output
+ * sizes in powers of two.
+ */
+class SizeEstimator {
+
+    private static final class Entry {
+        final RubyClass klass;
+        /** Bytes per element, scaled by 16 to keep a fraction. */
+        final long scaledEstimate;
+
+        Entry(RubyClass klass, long scaledEstimate) {
+            this.klass = klass;
+            this.scaledEstimate = scaledEstimate;
+        }
+    }
+
+    static final int SLOTS = 16;
+    static final int MIN_CAPACITY = 256;
+    static final int MAX_CAPACITY = 64 * 1024 * 1024;
+    private static final int SCALE = 16;
+
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(SLOTS);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(32);
+
+    /**
+     * Returns the initial capacity for the output of the root.
+     */
+    public int capacity(IRubyObject root) {
+        Entry entry = entries.get(slot(root.getMetaClass()));
+        if (entry == null || entry.klass != root.getMetaClass()) {
+            return MIN_CAPACITY;
+        }
+        long estimate = entry.scaledEstimate * elements(root) / SCALE;
+        estimate += estimate / 8;
+        return (int)Math.max(MIN_CAPACITY, Math.min(estimate, MAX_CAPACITY));
+    }
+
+    /**
+     * Learns from the output of the root.
+     *
+     * @param grown true if the writer had to grow beyond its capacity
+     */
+    public void record(IRubyObject root, int size, boolean grown) {
+        (grown ? misses : hits).incrementAndGet();
+        histogram.incrementAndGet(32 - Integer.numberOfLeadingZeros(size));
+
+        RubyClass klass = root.getMetaClass();
+        int slot = slot(klass);
+        long scaled = (long)size * SCALE / elements(root);
+        Entry entry = entries.get(slot);
+        if (entry != null && entry.klass == klass && scaled < entry.scaledEstimate) {
+            scaled = entry.scaledEstimate - (entry.scaledEstimate - scaled) / 8;
+        }
+        entries.lazySet(slot, new Entry(klass, scaled));
+    }
+
+    /**
+     * Returns {:hits => n, :misses => n, :sizes => {upper bound => count}}.
+     */
+    public RubyHash stats(Ruby ruby) {
+        RubyHash sizes = RubyHash.newHash(ruby);
+        for (int i = 0; i < histogram.length(); i++) {
+            long count = histogram.get(i);
+            if (count > 0) {
+                sizes.fastASet(ruby.newFixnum(1L << i), ruby.newFixnum(count));
+            }
+        }
+        RubyHash stats = RubyHash.newHash(ruby);
+        stats.fastASet(ruby.newSymbol("hits"), ruby.newFixnum(hits.get()));
+        stats.fastASet(ruby.newSymbol("misses"), ruby.newFixnum(misses.get()));
+        stats.fastASet(ruby.newSymbol("sizes"), sizes);
+        return stats;
+    }
+
+    private static int slot(RubyClass klass) {
+        return System.identityHashCode(klass) & (SLOTS - 1);
+    }
+
+    private static long elements(IRubyObject root) {
+        if (root instanceof RubyArray) {
+            return Math.max(1, ((RubyArray)root).getLength());
+        }
+        if (root instanceof RubyHash) {
+            return Math.max(1, ((RubyHash)root).size());
+        }
+        return 1;
+    }
+
+}
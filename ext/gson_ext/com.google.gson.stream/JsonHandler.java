@@ -0,0 +1,58 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.google.gson.stream;
+
+/**
+ * gson.rb customization: receives the tokens recognized by {@link
+ * JsonPushParser}.
+ *
+ * <p>Names, strings and numbers are passed as slices of UTF-8 bytes. The
+ * slice may point into the chunk given to the parser or into its scratch
+ * array, so it is only valid for the duration of the call.
+ */
+public interface JsonHandler {
+
+  void beginArray();
+
+  void endArray();
+
+  void beginObject();
+
+  void endObject();
+
+  void name(byte[] bytes, int start, int length);
+
+  void string(byte[] bytes, int start, int length);
+
+  /**
+   * Receives an integer which fits into a {@code long}.
+   */
+  void number(long value);
+
+  /**
+   * Receives any other number literal exactly as it appears in the source.
+   *
+   * @param fractional true if the number has a fraction or an exponent,
+   *     false if it is an integer too large for a {@code long}.
+   */
+  void number(byte[] bytes, int start, int length, boolean fractional);
+
+  void bool(boolean value);
+
+  void nullValue();
+
+}
@@ -0,0 +1,899 @@
+/*
+ *     Copyright 2012 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.google.gson.stream;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * gson.rb customization: an incremental parser for UTF-8 encoded JSON.
+ *
+ * <p>Unlike {@link Utf8JsonReader} this parser doesn't pull its input. The
+ * caller pushes the input in chunks of arbitrary size with {@link #feed} and
+ * the parser reports the tokens to a {@link JsonHandler} as soon as they are
+ * complete. All of the parser state, including the state inside of a partial
+ * token, is kept in fields, so a chunk may end at any byte: the next chunk
+ * continues from there. Consumed input is never scanned twice; only the bytes
+ * of a name, string or number which crosses a chunk boundary (or contains
+ * escape sequences) are copied into a scratch array. {@link #finish} marks the
+ * end of the input.
+ *
+ * <p>The lenient mode follows {@link Utf8JsonReader} with one exception:
+ * unquoted names and strings are rejected, because their end can't be told
+ * apart from the end of a chunk.
+ */
+public class JsonPushParser {
+  /** The only non-execute prefix this parser permits */
+  private static final byte[] NON_EXECUTE_PREFIX = { ')', ']', '}', '\'', '\n' };
+  private static final long MIN_INCOMPLETE_INTEGER = Long.MIN_VALUE / 10;
+  private static final byte[] BYTE_ORDER_MARK = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+  private static final byte[][] KEYWORDS = {
+    { 't', 'r', 'u', 'e' }, { 'f', 'a', 'l', 's', 'e' }, { 'n', 'u', 'l', 'l' }
+  };
+  private static final byte[][] KEYWORDS_UPPER = {
+    { 'T', 'R', 'U', 'E' }, { 'F', 'A', 'L', 'S', 'E' }, { 'N', 'U', 'L', 'L' }
+  };
+  private static final int KEYWORD_TRUE = 0;
+  private static final int KEYWORD_FALSE = 1;
+  private static final int KEYWORD_NULL = 2;
+
+  /* What the innermost scope expects next */
+  private static final int DOCUMENT_START = 1;
+  private static final int DOCUMENT_VALUE = 2;
+  private static final int ARRAY_START = 3;
+  private static final int ARRAY_VALUE = 4;
+  private static final int ARRAY_COMMA = 5;
+  private static final int OBJECT_START = 6;
+  private static final int OBJECT_NAME = 7;
+  private static final int OBJECT_COLON = 8;
+  private static final int OBJECT_VALUE = 9;
+  private static final int OBJECT_COMMA = 10;
+
+  /* The partial token which the next byte continues */
+  private static final int TOKEN_NONE = 0;
+  private static final int TOKEN_NAME = 1;
+  private static final int TOKEN_STRING = 2;
+  private static final int TOKEN_NUMBER = 3;
+  private static final int TOKEN_KEYWORD = 4;
+  private static final int TOKEN_SLASH = 5;
+  private static final int TOKEN_LINE_COMMENT = 6;
+  private static final int TOKEN_BLOCK_COMMENT = 7;
+  private static final int TOKEN_EQUALS = 8;
+  private static final int TOKEN_PREFIX = 9;
+
+  /* State machine when parsing escape sequences */
+  private static final int ESCAPE_NONE = 0;
+  private static final int ESCAPE_BACKSLASH = 1;
+  private static final int ESCAPE_UNICODE = 2;
+
+  /* State machine when parsing numbers */
+  private static final int NUMBER_CHAR_NONE = 0;
+  private static final int NUMBER_CHAR_SIGN = 1;
+  private static final int NUMBER_CHAR_DIGIT = 2;
+  private static final int NUMBER_CHAR_DECIMAL = 3;
+  private static final int NUMBER_CHAR_FRACTION_DIGIT = 4;
+  private static final int NUMBER_CHAR_EXP_E = 5;
+  private static final int NUMBER_CHAR_EXP_SIGN = 6;
+  private static final int NUMBER_CHAR_EXP_DIGIT = 7;
+
+  private final JsonHandler handler;
+
+  /** True to accept non-spec compliant JSON */
+  private boolean lenient = false;
+
+  /*
+   * The nesting stack. Using a manual array rather than an ArrayList saves 20%.
+   */
+  private int[] stack = new int[32];
+  private int stackSize = 0;
+
+  private int token = TOKEN_NONE;
+
+  /** The quote byte of the current name or string. */
+  private byte quote;
+  private int escape = ESCAPE_NONE;
+  private int escapeDigits;
+  private char escapeValue;
+  /** A high surrogate escape waiting for its low surrogate. */
+  private char highSurrogate;
+
+  private int numberChar;
+  private long numberValue; // Negative to accommodate Long.MIN_VALUE more easily.
+  private boolean numberNegative;
+  private boolean fitsInLong;
+
+  private int keyword;
+  private int keywordPos;
+
+  private boolean blockCommentStar;
+  private int prefixPos;
+  private boolean prefixAllowed;
+  private int byteOrderMarkPos;
+
+  /**
+   * Bytes of the current token collected from previous chunks, and of
+   * everything after its first escape sequence.
+   */
+  private byte[] scratch = new byte[128];
+  private int scratchLength = 0;
+  private boolean spilled = false;
+
+  /** The offset of the current chunk relative to the start of the input. */
+  private long chunkBase;
+  private int lineNumber;
+  private long lineStart;
+
+  /**
+   * Creates a new parser which reports the tokens to {@code handler}.
+   */
+  public JsonPushParser(JsonHandler handler) {
+    if (handler == null) {
+      throw new NullPointerException("handler == null");
+    }
+    this.handler = handler;
+    reset();
+  }
+
+  /**
+   * Configure this parser to be liberal in what it accepts, like {@link
+   * Utf8JsonReader#setLenient}, except that unquoted names and strings are
+   * never accepted.
+   */
+  public final void setLenient(boolean lenient) {
+    this.lenient = lenient;
+  }
+
+  /**
+   * Returns true if this parser is liberal in what it accepts.
+   */
+  public final boolean isLenient() {
+    return lenient;
+  }
+
+  /**
+   * Returns true if the parser is between top-level values, i.e. all of the
+   * input fed so far forms complete values.
+   */
+  public boolean isIdle() {
+    return stackSize == 1 && token == TOKEN_NONE && escape == ESCAPE_NONE;
+  }
+
+  /**
+   * Discards all of the state and makes the parser ready for a new input.
+   */
+  public void reset() {
+    stackSize = 0;
+    stack[stackSize++] = DOCUMENT_START;
+    token = TOKEN_NONE;
+    escape = ESCAPE_NONE;
+    highSurrogate = 0;
+    scratchLength = 0;
+    spilled = false;
+    prefixAllowed = true;
+    byteOrderMarkPos = 0;
+    chunkBase = 0;
+    lineNumber = 0;
+    lineStart = 0;
+  }
+
+  /**
+   * Parses the next {@code length} bytes of the input. The array is only
+   * read during this call; the bytes of an incomplete token are copied.
+   */
+  public void feed(byte[] bytes, int offset, int length) throws IOException {
+    int p = offset;
+    int end = offset + length;
+    chunkBase -= offset;
+    try {
+      while (p < end) {
+        switch (token) {
+        case TOKEN_NONE:
+          break;
+        case TOKEN_NAME:
+        case TOKEN_STRING:
+          p = scanString(bytes, p, end);
+          continue;
+        case TOKEN_NUMBER:
+          p = scanNumber(bytes, p, end);
+          continue;
+        case TOKEN_KEYWORD:
+          p = scanKeyword(bytes, p, end);
+          continue;
+        case TOKEN_LINE_COMMENT:
+          p = scanLineComment(bytes, p, end);
+          continue;
+        case TOKEN_BLOCK_COMMENT:
+          p = scanBlockComment(bytes, p, end);
+          continue;
+        default:
+          p = scanPunctuation(bytes, p);
+          continue;
+        }
+
+        int c = bytes[p];
+        switch (c) {
+        case '\n':
+          newline(p);
+          // fall-through
+        case ' ':
+        case '\t':
+        case '\r':
+          p++;
+          continue;
+        case '/':
+          checkLenient(p);
+          token = TOKEN_SLASH;
+          p++;
+          continue;
+        case '#':
+          /*
+           * Skip a # hash end-of-line comment. The JSON RFC doesn't
+           * specify this behaviour, but it's required to parse
+           * existing documents. See http://b/2571423.
+           */
+          checkLenient(p);
+          token = TOKEN_LINE_COMMENT;
+          p++;
+          continue;
+        default:
+          if (byteOrderMarkPos < BYTE_ORDER_MARK.length && chunkBase + p == byteOrderMarkPos
+              && (byte) c == BYTE_ORDER_MARK[byteOrderMarkPos]) {
+            byteOrderMarkPos++;
+            p++;
+            continue;
+          }
+          p = dispatch(bytes, p, c);
+        }
+      }
+    } finally {
+      chunkBase += end;
+    }
+  }
+
+  /**
+   * Marks the end of the input. Completes a trailing top-level number and
+   * makes the parser ready for a new input.
+   *
+   * @throws EOFException if the input ends inside of a value.
+   */
+  public void finish() throws IOException {
+    if (token == TOKEN_NUMBER) {
+      endNumber(scratch, 0, 0, 0);
+    } else if (token == TOKEN_LINE_COMMENT) {
+      token = TOKEN_NONE;
+    }
+    if (!isIdle()) {
+      throw new EOFException("End of input at line " + getLineNumber()
+          + " column " + getColumnNumber(0));
+    }
+    reset();
+  }
+
+  /**
+   * Handles a byte outside of any token: either punctuation or the first
+   * byte of a value or name. Returns the position of the next byte to parse.
+   */
+  private int dispatch(byte[] bytes, int p, int c) throws IOException {
+    int scope = stack[stackSize - 1];
+    switch (scope) {
+    case ARRAY_VALUE:
+      switch (c) {
+      case ']':
+        endContainer();
+        handler.endArray();
+        return p + 1;
+      case ';':
+        checkLenient(p); // fall-through
+      case ',':
+        stack[stackSize - 1] = ARRAY_COMMA;
+        return p + 1;
+      default:
+        throw syntaxError("Unterminated array", p);
+      }
+    case OBJECT_START:
+    case OBJECT_COMMA:
+      switch (c) {
+      case '"':
+        return beginString(TOKEN_NAME, c, p);
+      case '\'':
+        checkLenient(p);
+        return beginString(TOKEN_NAME, c, p);
+      case '}':
+        if (scope == OBJECT_START) {
+          endContainer();
+          handler.endObject();
+          return p + 1;
+        }
+        throw syntaxError("Expected name", p);
+      default:
+        throw syntaxError("Expected name", p);
+      }
+    case OBJECT_NAME:
+      switch (c) {
+      case ':':
+        stack[stackSize - 1] = OBJECT_COLON;
+        return p + 1;
+      case '=':
+        checkLenient(p);
+        stack[stackSize - 1] = OBJECT_COLON;
+        token = TOKEN_EQUALS;
+        return p + 1;
+      default:
+        throw syntaxError("Expected ':'", p);
+      }
+    case OBJECT_VALUE:
+      switch (c) {
+      case '}':
+        endContainer();
+        handler.endObject();
+        return p + 1;
+      case ';':
+        checkLenient(p); // fall-through
+      case ',':
+        stack[stackSize - 1] = OBJECT_COMMA;
+        return p + 1;
+      default:
+        throw syntaxError("Unterminated object", p);
+      }
+    case DOCUMENT_START:
+      if (c == NON_EXECUTE_PREFIX[0] && lenient && prefixAllowed) {
+        token = TOKEN_PREFIX;
+        prefixPos = 1;
+        return p + 1;
+      }
+      return beginValue(p, c);
+    case DOCUMENT_VALUE:
+      checkLenient(p);
+      return beginValue(p, c);
+    case ARRAY_START:
+      if (c == ']') {
+        endContainer();
+        handler.endArray();
+        return p + 1;
+      }
+      // fall-through
+    case ARRAY_COMMA:
+      if (c == ',' || c == ';' || c == ']') {
+        // In lenient mode, a 0-length literal in an array means 'null'.
+        checkLenient(p);
+        handler.nullValue();
+        endValue();
+        return p;
+      }
+      return beginValue(p, c);
+    case OBJECT_COLON:
+      return beginValue(p, c);
+    default:
+      throw new IllegalStateException("JsonPushParser is in an invalid state");
+    }
+  }
+
+  private int beginValue(int p, int c) throws IOException {
+    prefixAllowed = false;
+    switch (c) {
+    case '{':
+      push(OBJECT_START);
+      handler.beginObject();
+      return p + 1;
+    case '[':
+      push(ARRAY_START);
+      handler.beginArray();
+      return p + 1;
+    default:
+      break;
+    }
+
+    if (stackSize == 1) {
+      checkLenient(p); // Top-level value isn't an array or an object.
+    }
+
+    switch (c) {
+    case '"':
+      return beginString(TOKEN_STRING, c, p);
+    case '\'':
+      checkLenient(p);
+      return beginString(TOKEN_STRING, c, p);
+    case 't':
+    case 'T':
+      return beginKeyword(KEYWORD_TRUE, p);
+    case 'f':
+    case 'F':
+      return beginKeyword(KEYWORD_FALSE, p);
+    case 'n':
+    case 'N':
+      return beginKeyword(KEYWORD_NULL, p);
+    case '-':
+    case '0':
+    case '1':
+    case '2':
+    case '3':
+    case '4':
+    case '5':
+    case '6':
+    case '7':
+    case '8':
+    case '9':
+      token = TOKEN_NUMBER;
+      numberChar = NUMBER_CHAR_NONE;
+      numberValue = 0;
+      numberNegative = false;
+      fitsInLong = true;
+      scratchLength = 0;
+      spilled = false;
+      return p;
+    default:
+      throw syntaxError("Expected value", p);
+    }
+  }
+
+  /**
+   * Updates the innermost scope once a value in it is complete.
+   */
+  private void endValue() {
+    switch (stack[stackSize - 1]) {
+    case DOCUMENT_START:
+    case DOCUMENT_VALUE:
+      stack[stackSize - 1] = DOCUMENT_VALUE;
+      break;
+    case ARRAY_START:
+    case ARRAY_COMMA:
+      stack[stackSize - 1] = ARRAY_VALUE;
+      break;
+    case OBJECT_COLON:
+      stack[stackSize - 1] = OBJECT_VALUE;
+      break;
+    default:
+      throw new IllegalStateException("JsonPushParser is in an invalid state");
+    }
+  }
+
+  private void endContainer() {
+    stackSize--;
+    endValue();
+  }
+
+  private void push(int newTop) {
+    if (stackSize == stack.length) {
+      int[] newStack = new int[stackSize * 2];
+      System.arraycopy(stack, 0, newStack, 0, stackSize);
+      stack = newStack;
+    }
+    stack[stackSize++] = newTop;
+  }
+
+  private int beginString(int kind, int quote, int p) {
+    token = kind;
+    this.quote = (byte) quote;
+    scratchLength = 0;
+    spilled = false;
+    return p + 1;
+  }
+
+  /**
+   * Scans the bytes of a name or string. When the closing quote is in this
+   * chunk and the token has neither escapes nor bytes in a previous chunk,
+   * the handler receives a slice of the chunk itself.
+   */
+  private int scanString(byte[] bytes, int p, int end) throws IOException {
+    int start = p;
+    while (p < end) {
+      if (escape != ESCAPE_NONE) {
+        scanEscape(bytes[p], p);
+        start = ++p;
+        continue;
+      }
+      byte c = bytes[p];
+      if (c == quote) {
+        if (spilled) {
+          flushHighSurrogate();
+          append(bytes, start, p - start);
+          endString(scratch, 0, scratchLength);
+        } else {
+          endString(bytes, start, p - start);
+        }
+        return p + 1;
+      } else if (c == '\\') {
+        append(bytes, start, p - start);
+        spilled = true;
+        escape = ESCAPE_BACKSLASH;
+        start = ++p;
+        continue;
+      }
+      if (highSurrogate != 0) {
+        flushHighSurrogate();
+      }
+      if (c == '\n') {
+        newline(p);
+      }
+      p++;
+    }
+    append(bytes, start, p - start);
+    spilled = true;
+    return p;
+  }
+
+  private void endString(byte[] bytes, int start, int length) {
+    int kind = token;
+    token = TOKEN_NONE;
+    if (kind == TOKEN_NAME) {
+      stack[stackSize - 1] = OBJECT_NAME;
+      handler.name(bytes, start, length);
+    } else {
+      endValue();
+      handler.string(bytes, start, length);
+    }
+  }
+
+  /**
+   * Consumes one byte of an escape sequence, the backslash '\' has already
+   * been consumed. The unescaped character is appended to the scratch array
+   * in UTF-8. A pair of unicode escapes forming a surrogate pair is combined
+   * into a single supplementary character; a lone surrogate is replaced with
+   * '?', as {@link Utf8JsonReader} does.
+   *
+   * @throws NumberFormatException if any unicode escape sequences are
+   *     malformed.
+   */
+  private void scanEscape(byte c, int p) throws IOException {
+    if (escape == ESCAPE_BACKSLASH) {
+      if (c == 'u') {
+        escape = ESCAPE_UNICODE;
+        escapeDigits = 0;
+        escapeValue = 0;
+        return;
+      }
+      flushHighSurrogate();
+      escape = ESCAPE_NONE;
+      switch (c) {
+      case 't':
+        appendByte('\t');
+        return;
+      case 'b':
+        appendByte('\b');
+        return;
+      case 'n':
+        appendByte('\n');
+        return;
+      case 'r':
+        appendByte('\r');
+        return;
+      case 'f':
+        appendByte('\f');
+        return;
+      case '\n':
+        newline(p);
+        // fall-through
+      default:
+        appendByte(c);
+        return;
+      }
+    }
+
+    int digit;
+    if (c >= '0' && c <= '9') {
+      digit = c - '0';
+    } else if (c >= 'a' && c <= 'f') {
+      digit = c - 'a' + 10;
+    } else if (c >= 'A' && c <= 'F') {
+      digit = c - 'A' + 10;
+    } else {
+      throw new NumberFormatException("\\u" + Integer.toHexString(escapeValue)
+          .substring(escapeDigits == 0 ? 1 : 0) + (char) c);
+    }
+    escapeValue = (char) ((escapeValue << 4) + digit);
+    if (++escapeDigits < 4) {
+      return;
+    }
+    escape = ESCAPE_NONE;
+
+    char result = escapeValue;
+    if (highSurrogate != 0) {
+      if (Character.isLowSurrogate(result)) {
+        appendCodePoint(Character.toCodePoint(highSurrogate, result));
+        highSurrogate = 0;
+        return;
+      }
+      flushHighSurrogate();
+    }
+    if (Character.isHighSurrogate(result)) {
+      highSurrogate = result;
+    } else {
+      appendCodePoint(Character.isLowSurrogate(result) ? '?' : result);
+    }
+  }
+
+  private void flushHighSurrogate() {
+    if (highSurrogate != 0) {
+      highSurrogate = 0;
+      appendByte('?');
+    }
+  }
+
+  /**
+   * Scans the bytes of a number. The number ends at the first byte which
+   * can't continue it; that byte is left for {@link #dispatch}.
+   */
+  private int scanNumber(byte[] bytes, int p, int end) throws IOException {
+    // Like Utf8JsonReader.peekNumber, this uses locals to save inner-loop field access.
+    int start = p;
+    int last = numberChar;
+    long value = numberValue;
+    boolean fitsInLong = this.fitsInLong;
+    for (; p < end; p++) {
+      byte c = bytes[p];
+      switch (c) {
+      case '-':
+        if (last == NUMBER_CHAR_NONE) {
+          numberNegative = true;
+          last = NUMBER_CHAR_SIGN;
+          continue;
+        } else if (last == NUMBER_CHAR_EXP_E) {
+          last = NUMBER_CHAR_EXP_SIGN;
+          continue;
+        }
+        throw syntaxError("Malformed number", p);
+
+      case '+':
+        if (last == NUMBER_CHAR_EXP_E) {
+          last = NUMBER_CHAR_EXP_SIGN;
+          continue;
+        }
+        throw syntaxError("Malformed number", p);
+
+      case 'e':
+      case 'E':
+        if (last == NUMBER_CHAR_DIGIT || last == NUMBER_CHAR_FRACTION_DIGIT) {
+          last = NUMBER_CHAR_EXP_E;
+          continue;
+        }
+        throw syntaxError("Malformed number", p);
+
+      case '.':
+        if (last == NUMBER_CHAR_DIGIT) {
+          last = NUMBER_CHAR_DECIMAL;
+          continue;
+        }
+        throw syntaxError("Malformed number", p);
+
+      default:
+        if (c < '0' || c > '9') {
+          numberChar = last;
+          numberValue = value;
+          this.fitsInLong = fitsInLong;
+          endNumber(bytes, start, p, p);
+          return p;
+        }
+        if (last == NUMBER_CHAR_SIGN || last == NUMBER_CHAR_NONE) {
+          value = -(c - '0');
+          last = NUMBER_CHAR_DIGIT;
+        } else if (last == NUMBER_CHAR_DIGIT) {
+          if (value == 0) {
+            throw syntaxError("Malformed number", p); // Leading '0' prefix is not allowed
+          }
+          long newValue = value * 10 - (c - '0');
+          fitsInLong &= value > MIN_INCOMPLETE_INTEGER
+              || (value == MIN_INCOMPLETE_INTEGER && newValue < value);
+          value = newValue;
+        } else if (last == NUMBER_CHAR_DECIMAL) {
+          last = NUMBER_CHAR_FRACTION_DIGIT;
+        } else if (last == NUMBER_CHAR_EXP_E || last == NUMBER_CHAR_EXP_SIGN) {
+          last = NUMBER_CHAR_EXP_DIGIT;
+        }
+      }
+    }
+    numberChar = last;
+    numberValue = value;
+    this.fitsInLong = fitsInLong;
+    append(bytes, start, p - start);
+    spilled = true;
+    return p;
+  }
+
+  /**
+   * Completes the number whose bytes in the current chunk are {@code [start,
+   * limit)}; the bytes from previous chunks are in the scratch array.
+   */
+  private void endNumber(byte[] bytes, int start, int limit, int p) throws IOException {
+    int last = numberChar;
+    // gson.rb accepts a dangling exponent like "1e", as Utf8JsonReader does
+    if (last != NUMBER_CHAR_DIGIT && last != NUMBER_CHAR_FRACTION_DIGIT
+        && last != NUMBER_CHAR_EXP_DIGIT && last != NUMBER_CHAR_EXP_E) {
+      throw syntaxError("Malformed number", p);
+    }
+    token = TOKEN_NONE;
+    endValue();
+    if (last == NUMBER_CHAR_DIGIT && fitsInLong && (numberValue != Long.MIN_VALUE || numberNegative)) {
+      handler.number(numberNegative ? numberValue : -numberValue);
+    } else if (spilled) {
+      append(bytes, start, limit - start);
+      handler.number(scratch, 0, scratchLength, last != NUMBER_CHAR_DIGIT);
+    } else {
+      handler.number(bytes, start, limit - start, last != NUMBER_CHAR_DIGIT);
+    }
+  }
+
+  private int beginKeyword(int keyword, int p) {
+    token = TOKEN_KEYWORD;
+    this.keyword = keyword;
+    keywordPos = 0;
+    return p;
+  }
+
+  /**
+   * Matches the bytes of true, false or null in any case, as {@link
+   * Utf8JsonReader} does.
+   */
+  private int scanKeyword(byte[] bytes, int p, int end) throws IOException {
+    byte[] lower = KEYWORDS[keyword];
+    byte[] upper = KEYWORDS_UPPER[keyword];
+    while (p < end) {
+      byte c = bytes[p];
+      if (c != lower[keywordPos] && c != upper[keywordPos]) {
+        throw syntaxError("Expected value", p);
+      }
+      p++;
+      if (++keywordPos == lower.length) {
+        token = TOKEN_NONE;
+        endValue();
+        if (keyword == KEYWORD_NULL) {
+          handler.nullValue();
+        } else {
+          handler.bool(keyword == KEYWORD_TRUE);
+        }
+        break;
+      }
+    }
+    return p;
+  }
+
+  private int scanLineComment(byte[] bytes, int p, int end) {
+    while (p < end) {
+      byte c = bytes[p++];
+      if (c == '\n') {
+        newline(p - 1);
+        token = TOKEN_NONE;
+        break;
+      } else if (c == '\r') {
+        token = TOKEN_NONE;
+        break;
+      }
+    }
+    return p;
+  }
+
+  private int scanBlockComment(byte[] bytes, int p, int end) {
+    while (p < end) {
+      byte c = bytes[p++];
+      if (c == '/' && blockCommentStar) {
+        token = TOKEN_NONE;
+        break;
+      } else if (c == '\n') {
+        newline(p - 1);
+      }
+      blockCommentStar = c == '*';
+    }
+    return p;
+  }
+
+  /**
+   * Consumes the byte after a '/', '=' or the first byte of the non-execute
+   * prefix.
+   */
+  private int scanPunctuation(byte[] bytes, int p) throws IOException {
+    byte c = bytes[p];
+    switch (token) {
+    case TOKEN_SLASH:
+      if (c == '*') {
+        token = TOKEN_BLOCK_COMMENT;
+        blockCommentStar = false;
+        return p + 1;
+      } else if (c == '/') {
+        token = TOKEN_LINE_COMMENT;
+        return p + 1;
+      }
+      throw syntaxError("Expected value", p);
+    case TOKEN_EQUALS:
+      token = TOKEN_NONE;
+      return c == '>' ? p + 1 : p;
+    case TOKEN_PREFIX:
+      if (c != NON_EXECUTE_PREFIX[prefixPos]) {
+        throw syntaxError("Expected value", p);
+      }
+      if (++prefixPos == NON_EXECUTE_PREFIX.length) {
+        token = TOKEN_NONE;
+        prefixAllowed = false;
+        newline(p);
+      }
+      return p + 1;
+    default:
+      throw new IllegalStateException("JsonPushParser is in an invalid state");
+    }
+  }
+
+  private void append(byte[] bytes, int start, int length) {
+    if (length <= 0) {
+      return;
+    }
+    ensureScratch(length);
+    System.arraycopy(bytes, start, scratch, scratchLength, length);
+    scratchLength += length;
+  }
+
+  private void appendByte(int b) {
+    ensureScratch(1);
+    scratch[scratchLength++] = (byte) b;
+  }
+
+  private void appendCodePoint(int codePoint) {
+    ensureScratch(4);
+    if (codePoint < 0x80) {
+      scratch[scratchLength++] = (byte) codePoint;
+    } else if (codePoint < 0x800) {
+      scratch[scratchLength++] = (byte) (0xc0 | (codePoint >> 6));
+      scratch[scratchLength++] = (byte) (0x80 | (codePoint & 0x3f));
+    } else if (codePoint < 0x10000) {
+      scratch[scratchLength++] = (byte) (0xe0 | (codePoint >> 12));
+      scratch[scratchLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      scratch[scratchLength++] = (byte) (0x80 | (codePoint & 0x3f));
+    } else {
+      scratch[scratchLength++] = (byte) (0xf0 | (codePoint >> 18));
+      scratch[scratchLength++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+      scratch[scratchLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      scratch[scratchLength++] = (byte) (0x80 | (codePoint & 0x3f));
+    }
+  }
+
+  private void ensureScratch(int extra) {
+    if (scratchLength + extra > scratch.length) {
+      byte[] newScratch = new byte[Math.max(scratch.length * 2, scratchLength + extra)];
+      System.arraycopy(scratch, 0, newScratch, 0, scratchLength);
+      scratch = newScratch;
+    }
+  }
+
+  private void newline(int p) {
+    lineNumber++;
+    lineStart = chunkBase + p + 1;
+  }
+
+  private int getLineNumber() {
+    return lineNumber + 1;
+  }
+
+  private long getColumnNumber(int p) {
+    return chunkBase + p - lineStart + 1;
+  }
+
+  private void checkLenient(int p) throws IOException {
+    if (!lenient) {
+      throw syntaxError("Use JsonReader.setLenient(true) to accept malformed JSON", p);
+    }
+  }
+
+  /**
+   * Throws a new IO exception with the given message and a context snippet
+   * with this parser's content.
+   */
+  private IOException syntaxError(String message, int p) throws IOException {
+    throw new MalformedJsonException(message
+        + " at line " + getLineNumber() + " column " + getColumnNumber(p));
+  }
+
+  @Override public String toString() {
+    return getClass().getSimpleName() + " at line " + getLineNumber();
+  }
+}
@@ -26,32 +26,32 @@ public enum JsonToken {
 
   /**
    * The opening of a JSON array. Written using {@link JsonWriter#beginArray}
-   * and read using {@link JsonReader#beginArray}.
+   * and read using {@link Utf8JsonReader#beginArray}.
    */
   BEGIN_ARRAY,
 
   /**
    * The closing of a JSON array. Written using {@link JsonWriter#endArray}
-   * and read using {@link JsonReader#endArray}.
+   * and read using {@link Utf8JsonReader#endArray}.
    */
   END_ARRAY,
 
   /**
    * The opening of a JSON object. Written using {@link JsonWriter#beginObject}
-   * and read using {@link JsonReader#beginObject}.
+   * and read using {@link Utf8JsonReader#beginObject}.
    */
   BEGIN_OBJECT,
 
   /**
    * The closing of a JSON object. Written using {@link JsonWriter#endObject}
-   * and read using {@link JsonReader#endObject}.
+   * and read using {@link Utf8JsonReader#endObject}.
    */
   END_OBJECT,
 
   /**
    * A JSON property name. Within objects, tokens alternate between names and
    * their values. Written using {@link JsonWriter#name} and read using {@link
-   * JsonReader#nextName}
+   * Utf8JsonReader#nextName}
    */
   NAME,
 
@@ -78,7 +78,7 @@ public enum JsonToken {
 
   /**
    * The end of the JSON stream. This sentinel value is returned by {@link
-   * JsonReader#peek()} to signal that the JSON-encoded value has no more
+   * Utf8JsonReader#peek()} to signal that the JSON-encoded value has no more
    * tokens.
    */
   END_DOCUMENT
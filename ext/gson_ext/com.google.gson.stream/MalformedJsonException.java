@@ -20,7 +20,7 @@ import java.io.IOException;
 
 /**
  * Thrown when a reader encounters malformed JSON. Some syntax errors can be
- * ignored by calling {@link JsonReader#setLenient(boolean)}.
+ * ignored by calling {@link Utf8JsonReader#setLenient(boolean)}.
  */
 public final class MalformedJsonException extends IOException {
   private static final long serialVersionUID = 1L;
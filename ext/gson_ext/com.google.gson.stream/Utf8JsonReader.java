@@ -16,182 +16,37 @@
 
 package com.google.gson.stream;
 
-/* gson.rb customization
-import com.google.gson.internal.JsonReaderInternalAccess;
-import com.google.gson.internal.bind.JsonTreeReader;
-*/
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 
 /**
- * Reads a JSON (<a href="http://www.ietf.org/rfc/rfc4627.txt">RFC 4627</a>)
- * encoded value as a stream of tokens. This stream includes both literal
- * values (strings, numbers, booleans, and nulls) as well as the begin and
- * end delimiters of objects and arrays. The tokens are traversed in
- * depth-first order, the same order that they appear in the JSON document.
- * Within JSON objects, name/value pairs are represented by a single token.
+ * gson.rb customization: a byte oriented variant of Gson's {@code
+ * JsonReader}.
  *
- * <h3>Parsing JSON</h3>
- * To create a recursive descent parser for your own JSON streams, first create
- * an entry point method that creates a {@code JsonReader}.
+ * <p>This reader scans UTF-8 encoded JSON directly out of a byte array, so
+ * that the caller doesn't have to transcode its source into UTF-16 first.
+ * When constructed with an array, the array is used in place: the reader
+ * never copies or modifies it. When constructed with an {@link InputStream},
+ * the reader fills its own buffer from the stream as {@code JsonReader} does.
  *
- * <p>Next, create handler methods for each structure in your JSON text. You'll
- * need a method for each object type and for each array type.
- * <ul>
- *   <li>Within <strong>array handling</strong> methods, first call {@link
- *       #beginArray} to consume the array's opening bracket. Then create a
- *       while loop that accumulates values, terminating when {@link #hasNext}
- *       is false. Finally, read the array's closing bracket by calling {@link
- *       #endArray}.
- *   <li>Within <strong>object handling</strong> methods, first call {@link
- *       #beginObject} to consume the object's opening brace. Then create a
- *       while loop that assigns values to local variables based on their name.
- *       This loop should terminate when {@link #hasNext} is false. Finally,
- *       read the object's closing brace by calling {@link #endObject}.
- * </ul>
- * <p>When a nested object or array is encountered, delegate to the
- * corresponding handler method.
+ * <p>Names and string values are not returned as Java strings. Instead
+ * {@link #consumeName} and {@link #consumeString} expose the UTF-8 bytes of
+ * the token through {@link #valueBytes}, {@link #valueStart} and {@link
+ * #valueLength}. When the token contains no escape sequences the slice points
+ * straight into the source array (or into the buffer when reading a stream),
+ * otherwise the unescaped bytes are collected in an internal scratch array. The slice is only valid until the next call
+ * to any method of this reader.
  *
- * <p>When an unknown name is encountered, strict parsers should fail with an
- * exception. Lenient parsers should call {@link #skipValue()} to recursively
- * skip the value's nested tokens, which may otherwise conflict.
- *
- * <p>If a value may be null, you should first check using {@link #peek()}.
- * Null literals can be consumed using either {@link #nextNull()} or {@link
- * #skipValue()}.
- *
- * <h3>Example</h3>
- * Suppose we'd like to parse a stream of messages such as the following: <pre> {@code
- * [
- *   {
- *     "id": 912345678901,
- *     "text": "How do I read a JSON stream in Java?",
- *     "geo": null,
- *     "user": {
- *       "name": "json_newb",
- *       "followers_count": 41
- *      }
- *   },
- *   {
- *     "id": 912345678902,
- *     "text": "@json_newb just use JsonReader!",
- *     "geo": [50.454722, -104.606667],
- *     "user": {
- *       "name": "jesse",
- *       "followers_count": 2
- *     }
- *   }
- * ]}</pre>
- * This code implements the parser for the above structure: <pre>   {@code
- *
- *   public List<Message> readJsonStream(InputStream in) throws IOException {
- *     JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
- *     try {
- *       return readMessagesArray(reader);
- *     } finally {
- *       reader.close();
- *     }
- *   }
- *
- *   public List<Message> readMessagesArray(JsonReader reader) throws IOException {
- *     List<Message> messages = new ArrayList<Message>();
- *
- *     reader.beginArray();
- *     while (reader.hasNext()) {
- *       messages.add(readMessage(reader));
- *     }
- *     reader.endArray();
- *     return messages;
- *   }
- *
- *   public Message readMessage(JsonReader reader) throws IOException {
- *     long id = -1;
- *     String text = null;
- *     User user = null;
- *     List<Double> geo = null;
- *
- *     reader.beginObject();
- *     while (reader.hasNext()) {
- *       String name = reader.nextName();
- *       if (name.equals("id")) {
- *         id = reader.nextLong();
- *       } else if (name.equals("text")) {
- *         text = reader.nextString();
- *       } else if (name.equals("geo") && reader.peek() != JsonToken.NULL) {
- *         geo = readDoublesArray(reader);
- *       } else if (name.equals("user")) {
- *         user = readUser(reader);
- *       } else {
- *         reader.skipValue();
- *       }
- *     }
- *     reader.endObject();
- *     return new Message(id, text, user, geo);
- *   }
- *
- *   public List<Double> readDoublesArray(JsonReader reader) throws IOException {
- *     List<Double> doubles = new ArrayList<Double>();
- *
- *     reader.beginArray();
- *     while (reader.hasNext()) {
- *       doubles.add(reader.nextDouble());
- *     }
- *     reader.endArray();
- *     return doubles;
- *   }
- *
- *   public User readUser(JsonReader reader) throws IOException {
- *     String username = null;
- *     int followersCount = -1;
- *
- *     reader.beginObject();
- *     while (reader.hasNext()) {
- *       String name = reader.nextName();
- *       if (name.equals("name")) {
- *         username = reader.nextString();
- *       } else if (name.equals("followers_count")) {
- *         followersCount = reader.nextInt();
- *       } else {
- *         reader.skipValue();
- *       }
- *     }
- *     reader.endObject();
- *     return new User(username, followersCount);
- *   }}</pre>
- *
- * <h3>Number Handling</h3>
- * This reader permits numeric values to be read as strings and string values to
- * be read as numbers. For example, both elements of the JSON array {@code
- * [1, "1"]} may be read using either {@link #nextInt} or {@link #nextString}.
- * This behavior is intended to prevent lossy numeric conversions: double is
- * JavaScript's only numeric type and very large values like {@code
- * 9007199254740993} cannot be represented exactly on that platform. To minimize
- * precision loss, extremely large values should be written and read as strings
- * in JSON.
- *
- * <a name="nonexecuteprefix"/><h3>Non-Execute Prefix</h3>
- * Web servers that serve private data using JSON may be vulnerable to <a
- * href="http://en.wikipedia.org/wiki/JSON#Cross-site_request_forgery">Cross-site
- * request forgery</a> attacks. In such an attack, a malicious site gains access
- * to a private JSON file by executing it with an HTML {@code <script>} tag.
- *
- * <p>Prefixing JSON files with <code>")]}'\n"</code> makes them non-executable
- * by {@code <script>} tags, disarming the attack. Since the prefix is malformed
- * JSON, strict parsing fails when it is encountered. This class permits the
- * non-execute prefix when {@link #setLenient(boolean) lenient parsing} is
- * enabled.
- *
- * <p>Each {@code JsonReader} may be used to read a single JSON stream. Instances
- * of this class are not thread safe.
- *
- * @author Jesse Wilson
- * @since 1.6
+ * <p>Apart from that this reader follows {@code JsonReader} token by token,
+ * including its lenient mode. Line and column numbers in error messages count
+ * bytes rather than characters.
  */
-public class JsonReader implements Closeable {
+public class Utf8JsonReader implements Closeable {
   /** The only non-execute prefix this parser permits */
-  private static final char[] NON_EXECUTE_PREFIX = ")]}'\n".toCharArray();
+  private static final byte[] NON_EXECUTE_PREFIX = { ')', ']', '}', '\'', '\n' };
   private static final long MIN_INCOMPLETE_INTEGER = Long.MIN_VALUE / 10;
 
   private static final int PEEKED_NONE = 0;
@@ -205,12 +60,13 @@ public class JsonReader implements Closeable {
   private static final int PEEKED_SINGLE_QUOTED = 8;
   private static final int PEEKED_DOUBLE_QUOTED = 9;
   private static final int PEEKED_UNQUOTED = 10;
-  /** When this is returned, the string value is stored in peekedString. */
-  private static final int PEEKED_BUFFERED = 11;
   private static final int PEEKED_SINGLE_QUOTED_NAME = 12;
   private static final int PEEKED_DOUBLE_QUOTED_NAME = 13;
   private static final int PEEKED_UNQUOTED_NAME = 14;
-  /** When this is returned, the integer value is stored in peekedLong. */
+  /**
+   * When this is returned, the integer value is stored in peekedLong. Unlike
+   * {@code JsonReader} the literal itself is still in the buffer.
+   */
   private static final int PEEKED_LONG = 15;
   private static final int PEEKED_NUMBER = 16;
   private static final int PEEKED_EOF = 17;
@@ -225,22 +81,18 @@ public class JsonReader implements Closeable {
   private static final int NUMBER_CHAR_EXP_SIGN = 6;
   private static final int NUMBER_CHAR_EXP_DIGIT = 7;
 
-  /* gson.rb customization */
-  /** The input JSON. */
-  private Reader in;
-  //private final Reader in;
-  /* gson.rb customization end */
+  /** The input JSON, or null when reading from a fixed array. */
+  private final InputStream in;
 
   /** True to accept non-spec compliant JSON */
   private boolean lenient = false;
 
   /**
-   * Use a manual buffer to easily read and unread upcoming characters, and
-   * also so we can create strings without an intermediate StringBuilder.
-   * We decode literals directly out of this buffer, so it must be at least as
-   * long as the longest token that can be reported as a number.
+   * When reading from a stream, a manual buffer to easily read and unread
+   * upcoming bytes. Otherwise it is the caller's array and {@code pos} and
+   * {@code limit} are absolute offsets into it.
    */
-  private final char[] buffer = new char[1024];
+  private byte[] buffer;
   private int pos = 0;
   private int limit = 0;
 
@@ -256,17 +108,16 @@ public class JsonReader implements Closeable {
   private long peekedLong;
 
   /**
-   * The number of characters in a peeked number literal. Increment 'pos' by
-   * this after reading a number.
+   * The number of bytes in a peeked number literal. Increment 'pos' by this
+   * after reading a number.
    */
   private int peekedNumberLength;
 
   /**
-   * A peeked string that should be parsed on the next double, long or string.
-   * This is populated before a numeric value is parsed and used if that parsing
-   * fails.
+   * True if the peeked number has a fraction or an exponent, false if it is
+   * an integer. Only meaningful for PEEKED_NUMBER.
    */
-  private String peekedString;
+  private boolean peekedFractional;
 
   /*
    * The nesting stack. Using a manual array rather than an ArrayList saves 20%.
@@ -277,77 +128,99 @@ public class JsonReader implements Closeable {
     stack[stackSize++] = JsonScope.EMPTY_DOCUMENT;
   }
 
-  /* gson.rb customization */
-  private class InternalStateSnapshot {
-	  private int peeked;
-	  private int[] stack = new int[32];
-	  private int stackSize;
-
-	  public InternalStateSnapshot() {
-	  }
-
-	  public void take() {
-		  peeked = JsonReader.this.peeked;
-
-		  if (stack.length < JsonReader.this.stack.length) {
-			  stack = new int[JsonReader.this.stack.length];
-		  }
-		  System.arraycopy(JsonReader.this.stack, 0, stack, 0, JsonReader.this.stack.length);
-
-		  stackSize = JsonReader.this.stackSize;
-	  }
-
-	  public void release() {
-		  JsonReader.this.peeked = peeked;
-		  System.arraycopy(stack, 0, JsonReader.this.stack, 0, stack.length);
-		  JsonReader.this.stackSize = stackSize;
-	  }
-  }
+  /** True once the stream was checked for a byte order mark. */
+  private boolean bomChecked = false;
 
-  private InternalStateSnapshot snapshot = this.new InternalStateSnapshot();
-  private boolean chunkMode = false;
+  /** Unescaped bytes of names and strings which contain escape sequences. */
+  private byte[] scratch = new byte[128];
+  private int scratchLength = 0;
 
-  public void setChunkMode(boolean chunkMode) {
-	  this.chunkMode = chunkMode;
-  }
+  /** The slice returned by the last consume call. */
+  private byte[] valueBytes;
+  private int valueStart;
+  private int valueLength;
 
-  public void prepareForBreak() {
-	  snapshot.take();
+  /**
+   * Creates a new instance that reads a UTF-8 encoded JSON document from
+   * {@code length} bytes of {@code bytes} starting at {@code offset}.
+   */
+  public Utf8JsonReader(byte[] bytes, int offset, int length) {
+    if (bytes == null) {
+      throw new NullPointerException("bytes == null");
+    }
+    if (offset < 0 || length < 0 || offset + length > bytes.length) {
+      throw new IndexOutOfBoundsException("offset " + offset + ", length " + length);
+    }
+    this.in = null;
+    setInput(bytes, offset, length);
   }
 
-  public void recoverAfterBreak(Reader in) {
-	  this.in = in;
-	  snapshot.release();
-	  pos = 0;
-	  limit = 0;
-	  lineNumber = 0;
-	  lineStart = 0;
+  /**
+   * Starts reading another document from {@code length} bytes of {@code
+   * bytes} starting at {@code offset}, keeping the stack and the scratch
+   * space allocated so far. Only readers of a fixed array can be reset.
+   */
+  public void reset(byte[] bytes, int offset, int length) {
+    if (in != null) {
+      throw new IllegalStateException("cannot reset a reader of a stream");
+    }
+    if (bytes == null) {
+      throw new NullPointerException("bytes == null");
+    }
+    if (offset < 0 || length < 0 || offset + length > bytes.length) {
+      throw new IndexOutOfBoundsException("offset " + offset + ", length " + length);
+    }
+    peeked = PEEKED_NONE;
+    stack[0] = JsonScope.EMPTY_DOCUMENT;
+    stackSize = 1;
+    lineNumber = 0;
+    valueBytes = null;
+    setInput(bytes, offset, length);
   }
 
-  public int getUnreadBufferLength() {
-	  return limit - pos;
+  private void setInput(byte[] bytes, int offset, int length) {
+    this.buffer = bytes;
+    this.pos = offset;
+    this.limit = offset + length;
+    this.lineStart = offset;
+    // consume an optional byte order mark (BOM) if it exists
+    if (length >= 3 && bytes[offset] == (byte) 0xef && bytes[offset + 1] == (byte) 0xbb
+        && bytes[offset + 2] == (byte) 0xbf) {
+      pos += 3;
+      lineStart += 3;
+    }
   }
-  /* gson.rb customization end */
 
   /**
-   * Creates a new instance that reads a JSON-encoded stream from {@code in}.
+   * Creates a new instance that reads a UTF-8 encoded JSON stream from
+   * {@code in}, using a buffer of {@code bufferSize} bytes. The buffer must be
+   * at least as long as the longest token that can be reported as a number.
    */
-  public JsonReader(Reader in) {
+  public Utf8JsonReader(InputStream in, int bufferSize) {
     if (in == null) {
       throw new NullPointerException("in == null");
     }
     this.in = in;
+    this.buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Creates a new instance that reads a UTF-8 encoded JSON stream from
+   * {@code in}.
+   */
+  public Utf8JsonReader(InputStream in) {
+    this(in, 8192);
   }
 
   /**
-   * Configure this parser to be  be liberal in what it accepts. By default,
+   * Configure this parser to be liberal in what it accepts. By default,
    * this parser is strict and only accepts JSON as specified by <a
    * href="http://www.ietf.org/rfc/rfc4627.txt">RFC 4627</a>. Setting the
    * parser to lenient causes it to ignore the following syntax errors:
    *
    * <ul>
-   *   <li>Streams that start with the <a href="#nonexecuteprefix">non-execute
-   *       prefix</a>, <code>")]}'\n"</code>.
+   *   <li>Streams that start with the non-execute prefix,
+   *       <code>")]}'\n"</code>.
    *   <li>Streams that include multiple top-level values. With strict parsing,
    *       each stream must contain exactly one top-level value.
    *   <li>Top-level values of any type. With strict parsing, the top-level
@@ -492,7 +365,6 @@ public class JsonReader implements Closeable {
     case PEEKED_SINGLE_QUOTED:
     case PEEKED_DOUBLE_QUOTED:
     case PEEKED_UNQUOTED:
-    case PEEKED_BUFFERED:
       return JsonToken.STRING;
     case PEEKED_LONG:
     case PEEKED_NUMBER:
@@ -553,7 +425,7 @@ public class JsonReader implements Closeable {
       default:
         checkLenient();
         pos--; // Don't consume the first character in an unquoted string.
-        if (isLiteral((char) c)) {
+        if (isLiteral(c)) {
           return peeked = PEEKED_UNQUOTED_NAME;
         } else {
           throw syntaxError("Expected name");
@@ -649,7 +521,7 @@ public class JsonReader implements Closeable {
 
   private int peekKeyword() throws IOException {
     // Figure out which keyword we're matching against by its first character.
-    char c = buffer[pos];
+    byte c = buffer[pos];
     String keyword;
     String keywordUpper;
     int peeking;
@@ -673,11 +545,6 @@ public class JsonReader implements Closeable {
     int length = keyword.length();
     for (int i = 1; i < length; i++) {
       if (pos + i >= limit && !fillBuffer(i + 1)) {
-        /* gson.rb customization */
-        if (chunkMode) {
-          throw syntaxError("Unterminated string");
-        }
-
         return PEEKED_NONE;
       }
       c = buffer[pos + i];
@@ -698,7 +565,7 @@ public class JsonReader implements Closeable {
 
   private int peekNumber() throws IOException {
     // Like nextNonWhitespace, this uses locals 'p' and 'l' to save inner-loop field access.
-    char[] buffer = this.buffer;
+    byte[] buffer = this.buffer;
     int p = pos;
     int l = limit;
 
@@ -712,24 +579,19 @@ public class JsonReader implements Closeable {
     charactersOfNumber:
     for (; true; i++) {
       if (p + i == l) {
-        if (i == buffer.length) {
+        if (in != null && i == buffer.length) {
           // Though this looks like a well-formed number, it's too long to continue reading. Give up
           // and let the application handle this as an unquoted literal.
           return PEEKED_NONE;
         }
         if (!fillBuffer(i + 1)) {
-          /* gson.rb customization */
-          if (chunkMode) {
-            throw syntaxError("Unterminated string");
-          }
-
           break;
         }
         p = pos;
         l = limit;
       }
 
-      char c = buffer[p + i];
+      byte c = buffer[p + i];
       switch (c) {
       case '-':
         if (last == NUMBER_CHAR_NONE) {
@@ -793,18 +655,19 @@ public class JsonReader implements Closeable {
     // We've read a complete number. Decide if it's a PEEKED_LONG or a PEEKED_NUMBER.
     if (last == NUMBER_CHAR_DIGIT && fitsInLong && (value != Long.MIN_VALUE || negative)) {
       peekedLong = negative ? value : -value;
-      pos += i;
+      peekedNumberLength = i;
       return peeked = PEEKED_LONG;
     } else if (last == NUMBER_CHAR_DIGIT || last == NUMBER_CHAR_FRACTION_DIGIT
         || last == NUMBER_CHAR_EXP_DIGIT || last == NUMBER_CHAR_EXP_E) {// gson.rb customization: "|| last == NUMBER_CHAR_EXP_E"
       peekedNumberLength = i;
+      peekedFractional = last != NUMBER_CHAR_DIGIT;
       return peeked = PEEKED_NUMBER;
     } else {
       return PEEKED_NONE;
     }
   }
 
-  private boolean isLiteral(char c) throws IOException {
+  private boolean isLiteral(int c) throws IOException {
     switch (c) {
     case '/':
     case '\\':
@@ -830,70 +693,109 @@ public class JsonReader implements Closeable {
   }
 
   /**
-   * Returns the next token, a {@link com.google.gson.stream.JsonToken#NAME property name}, and
-   * consumes it.
+   * Consumes the next token, a {@link JsonToken#NAME property name}, and
+   * exposes its unescaped UTF-8 bytes through {@link #valueBytes}, {@link
+   * #valueStart} and {@link #valueLength}.
    *
    * @throws java.io.IOException if the next token in the stream is not a property
    *     name.
    */
-  public String nextName() throws IOException {
+  public void consumeName() throws IOException {
     int p = peeked;
     if (p == PEEKED_NONE) {
       p = doPeek();
     }
-    String result;
     if (p == PEEKED_UNQUOTED_NAME) {
-      result = nextUnquotedValue();
+      nextUnquotedValue();
     } else if (p == PEEKED_SINGLE_QUOTED_NAME) {
-      result = nextQuotedValue('\'');
+      nextQuotedValue('\'');
     } else if (p == PEEKED_DOUBLE_QUOTED_NAME) {
-      result = nextQuotedValue('"');
+      nextQuotedValue('"');
     } else {
       throw new IllegalStateException("Expected a name but was " + peek()
           + " at line " + getLineNumber() + " column " + getColumnNumber());
     }
     peeked = PEEKED_NONE;
-    return result;
   }
 
   /**
-   * Returns the {@link com.google.gson.stream.JsonToken#STRING string} value of the next token,
-   * consuming it. If the next token is a number, this method will return its
-   * string form.
+   * Consumes the next token, a {@link JsonToken#STRING string} or a {@link
+   * JsonToken#NUMBER number}, and exposes its unescaped UTF-8 bytes through
+   * {@link #valueBytes}, {@link #valueStart} and {@link #valueLength}.
+   * Numbers are exposed in their literal form.
    *
    * @throws IllegalStateException if the next token is not a string or if
    *     this reader is closed.
    */
-  public String nextString() throws IOException {
+  public void consumeString() throws IOException {
     int p = peeked;
     if (p == PEEKED_NONE) {
       p = doPeek();
     }
-    String result;
     if (p == PEEKED_UNQUOTED) {
-      result = nextUnquotedValue();
+      nextUnquotedValue();
     } else if (p == PEEKED_SINGLE_QUOTED) {
-      result = nextQuotedValue('\'');
+      nextQuotedValue('\'');
     } else if (p == PEEKED_DOUBLE_QUOTED) {
-      result = nextQuotedValue('"');
-    } else if (p == PEEKED_BUFFERED) {
-      result = peekedString;
-      peekedString = null;
-    } else if (p == PEEKED_LONG) {
-      result = Long.toString(peekedLong);
-    } else if (p == PEEKED_NUMBER) {
-      result = new String(buffer, pos, peekedNumberLength);
+      nextQuotedValue('"');
+    } else if (p == PEEKED_LONG || p == PEEKED_NUMBER) {
+      setValue(buffer, pos, peekedNumberLength);
       pos += peekedNumberLength;
     } else {
       throw new IllegalStateException("Expected a string but was " + peek()
           + " at line " + getLineNumber() + " column " + getColumnNumber());
     }
     peeked = PEEKED_NONE;
-    return result;
   }
 
   /**
-   * Returns the {@link com.google.gson.stream.JsonToken#BOOLEAN boolean} value of the next token,
+   * Returns the array holding the bytes of the last consumed name or string.
+   */
+  public byte[] valueBytes() {
+    return valueBytes;
+  }
+
+  /**
+   * Returns the offset of the last consumed name or string in {@link #valueBytes}.
+   */
+  public int valueStart() {
+    return valueStart;
+  }
+
+  /**
+   * Returns the length in bytes of the last consumed name or string.
+   */
+  public int valueLength() {
+    return valueLength;
+  }
+
+  /**
+   * Returns the next token, a {@link JsonToken#NAME property name}, and
+   * consumes it.
+   *
+   * @throws java.io.IOException if the next token in the stream is not a property
+   *     name.
+   */
+  public String nextName() throws IOException {
+    consumeName();
+    return valueToString();
+  }
+
+  /**
+   * Returns the {@link JsonToken#STRING string} value of the next token,
+   * consuming it. If the next token is a number, this method will return its
+   * string form.
+   *
+   * @throws IllegalStateException if the next token is not a string or if
+   *     this reader is closed.
+   */
+  public String nextString() throws IOException {
+    consumeString();
+    return valueToString();
+  }
+
+  /**
+   * Returns the {@link JsonToken#BOOLEAN boolean} value of the next token,
    * consuming it.
    *
    * @throws IllegalStateException if the next token is not a boolean or if
@@ -936,128 +838,119 @@ public class JsonReader implements Closeable {
   }
 
   /**
-   * Returns the {@link com.google.gson.stream.JsonToken#NUMBER double} value of the next token,
-   * consuming it. If the next token is a string, this method will attempt to
-   * parse it as a double using {@link Double#parseDouble(String)}.
-   *
-   * @throws IllegalStateException if the next token is not a literal value.
-   * @throws NumberFormatException if the next literal value cannot be parsed
-   *     as a double, or is non-finite.
+   * Returns true if the next token is a {@link JsonToken#NUMBER number} which
+   * {@link #nextLong} accepts.
    */
-  public double nextDouble() throws IOException {
+  public boolean hasLong() throws IOException {
     int p = peeked;
     if (p == PEEKED_NONE) {
       p = doPeek();
     }
+    return p == PEEKED_LONG;
+  }
 
-    if (p == PEEKED_LONG) {
-      peeked = PEEKED_NONE;
-      return (double) peekedLong;
-    }
-
-    if (p == PEEKED_NUMBER) {
-      peekedString = new String(buffer, pos, peekedNumberLength);
-      pos += peekedNumberLength;
-    } else if (p == PEEKED_SINGLE_QUOTED || p == PEEKED_DOUBLE_QUOTED) {
-      peekedString = nextQuotedValue(p == PEEKED_SINGLE_QUOTED ? '\'' : '"');
-    } else if (p == PEEKED_UNQUOTED) {
-      peekedString = nextUnquotedValue();
-    } else if (p != PEEKED_BUFFERED) {
-      throw new IllegalStateException("Expected a double but was " + peek()
-          + " at line " + getLineNumber() + " column " + getColumnNumber());
-    }
-
-    peeked = PEEKED_BUFFERED;
-    double result = Double.parseDouble(peekedString); // don't catch this NumberFormatException.
-    if (!lenient && (Double.isNaN(result) || Double.isInfinite(result))) {
-      throw new MalformedJsonException("JSON forbids NaN and infinities: " + result
-          + " at line " + getLineNumber() + " column " + getColumnNumber());
+  /**
+   * Returns true if the next token is a {@link JsonToken#NUMBER number} with
+   * a fraction or an exponent, false if it is an integer.
+   */
+  public boolean isFractional() throws IOException {
+    int p = peeked;
+    if (p == PEEKED_NONE) {
+      p = doPeek();
     }
-    peekedString = null;
-    peeked = PEEKED_NONE;
-    return result;
+    return p == PEEKED_NUMBER && peekedFractional;
   }
 
   /**
-   * Returns the {@link com.google.gson.stream.JsonToken#NUMBER long} value of the next token,
-   * consuming it. If the next token is a string, this method will attempt to
-   * parse it as a long. If the next token's numeric value cannot be exactly
-   * represented by a Java {@code long}, this method throws.
+   * Returns the {@link JsonToken#NUMBER long} value of the next token,
+   * consuming it. Unlike {@code JsonReader.nextLong} this method only accepts
+   * numbers which fit into a {@code long} without any conversion.
    *
-   * @throws IllegalStateException if the next token is not a literal value.
-   * @throws NumberFormatException if the next literal value cannot be parsed
-   *     as a number, or exactly represented as a long.
+   * @throws IllegalStateException if the next token is not such number.
    */
   public long nextLong() throws IOException {
     int p = peeked;
     if (p == PEEKED_NONE) {
       p = doPeek();
     }
-
     if (p == PEEKED_LONG) {
+      pos += peekedNumberLength;
       peeked = PEEKED_NONE;
       return peekedLong;
     }
+    throw new IllegalStateException("Expected a long but was " + peek()
+        + " at line " + getLineNumber() + " column " + getColumnNumber());
+  }
 
-    if (p == PEEKED_NUMBER) {
-      peekedString = new String(buffer, pos, peekedNumberLength);
-      pos += peekedNumberLength;
-    } else if (p == PEEKED_SINGLE_QUOTED || p == PEEKED_DOUBLE_QUOTED) {
-      peekedString = nextQuotedValue(p == PEEKED_SINGLE_QUOTED ? '\'' : '"');
-      try {
-        long result = Long.parseLong(peekedString);
-        peeked = PEEKED_NONE;
-        return result;
-      } catch (NumberFormatException ignored) {
-        // Fall back to parse as a double below.
-      }
-    } else {
-      throw new IllegalStateException("Expected a long but was " + peek()
-          + " at line " + getLineNumber() + " column " + getColumnNumber());
+  /**
+   * Points the value slice at {@code length} bytes of {@code bytes} starting
+   * at {@code start}.
+   */
+  private void setValue(byte[] bytes, int start, int length) {
+    valueBytes = bytes;
+    valueStart = start;
+    valueLength = length;
+  }
+
+  private String valueToString() {
+    try {
+      return new String(valueBytes, valueStart, valueLength, "UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      throw new AssertionError(ex);
     }
+  }
 
-    peeked = PEEKED_BUFFERED;
-    double asDouble = Double.parseDouble(peekedString); // don't catch this NumberFormatException.
-    long result = (long) asDouble;
-    if (result != asDouble) { // Make sure no precision was lost casting to 'long'.
-      throw new NumberFormatException("Expected a long but was " + peekedString
-          + " at line " + getLineNumber() + " column " + getColumnNumber());
+  private void appendScratch(byte[] bytes, int start, int length) {
+    ensureScratch(length);
+    System.arraycopy(bytes, start, scratch, scratchLength, length);
+    scratchLength += length;
+  }
+
+  private void ensureScratch(int extra) {
+    if (scratchLength + extra > scratch.length) {
+      byte[] newScratch = new byte[Math.max(scratch.length * 2, scratchLength + extra)];
+      System.arraycopy(scratch, 0, newScratch, 0, scratchLength);
+      scratch = newScratch;
     }
-    peekedString = null;
-    peeked = PEEKED_NONE;
-    return result;
   }
 
   /**
-   * Returns the string up to but not including {@code quote}, unescaping any
+   * Consumes the value up to but not including {@code quote}, unescaping any
    * character escape sequences encountered along the way. The opening quote
    * should have already been read. This consumes the closing quote, but does
-   * not include it in the returned string.
+   * not include it in the value.
    *
    * @param quote either ' or ".
    * @throws NumberFormatException if any unicode escape sequences are
    *     malformed.
    */
-  private String nextQuotedValue(char quote) throws IOException {
+  private void nextQuotedValue(char quote) throws IOException {
     // Like nextNonWhitespace, this uses locals 'p' and 'l' to save inner-loop field access.
-    char[] buffer = this.buffer;
-    StringBuilder builder = new StringBuilder();
+    byte[] buffer = this.buffer;
+    boolean escaped = false;
+    scratchLength = 0;
     while (true) {
       int p = pos;
       int l = limit;
-      /* the index of the first character not yet appended to the builder. */
+      /* the index of the first byte not yet appended to the scratch array. */
       int start = p;
       while (p < l) {
         int c = buffer[p++];
 
         if (c == quote) {
           pos = p;
-          builder.append(buffer, start, p - start - 1);
-          return builder.toString();
+          if (escaped) {
+            appendScratch(buffer, start, p - start - 1);
+            setValue(scratch, 0, scratchLength);
+          } else {
+            setValue(buffer, start, p - start - 1);
+          }
+          return;
         } else if (c == '\\') {
           pos = p;
-          builder.append(buffer, start, p - start - 1);
-          builder.append(readEscapeCharacter());
+          appendScratch(buffer, start, p - start - 1);
+          escaped = true;
+          readEscapeCharacter();
           p = pos;
           l = limit;
           start = p;
@@ -1067,7 +960,8 @@ public class JsonReader implements Closeable {
         }
       }
 
-      builder.append(buffer, start, p - start);
+      appendScratch(buffer, start, p - start);
+      escaped = true;
       pos = p;
       if (!fillBuffer(1)) {
         throw syntaxError("Unterminated string");
@@ -1076,11 +970,12 @@ public class JsonReader implements Closeable {
   }
 
   /**
-   * Returns an unquoted value as a string.
+   * Consumes an unquoted value.
    */
   @SuppressWarnings("fallthrough")
-  private String nextUnquotedValue() throws IOException {
-    StringBuilder builder = null;
+  private void nextUnquotedValue() throws IOException {
+    boolean spilled = false;
+    scratchLength = 0;
     int i = 0;
 
     findNonLiteralCharacter:
@@ -1117,11 +1012,9 @@ public class JsonReader implements Closeable {
         }
       }
 
-      // use a StringBuilder when the value is too long. This is too long to be a number!
-      if (builder == null) {
-        builder = new StringBuilder();
-      }
-      builder.append(buffer, pos, i);
+      // use the scratch array when the value is too long. This is too long to be a number!
+      appendScratch(buffer, pos, i);
+      spilled = true;
       pos += i;
       i = 0;
       if (!fillBuffer(1)) {
@@ -1129,24 +1022,21 @@ public class JsonReader implements Closeable {
       }
     }
 
-    String result;
-    if (builder == null) {
-      result = new String(buffer, pos, i);
+    if (spilled) {
+      appendScratch(buffer, pos, i);
+      setValue(scratch, 0, scratchLength);
     } else {
-      builder.append(buffer, pos, i);
-      result = builder.toString();
+      setValue(buffer, pos, i);
     }
     pos += i;
-    return result;
   }
 
   private void skipQuotedValue(char quote) throws IOException {
     // Like nextNonWhitespace, this uses locals 'p' and 'l' to save inner-loop field access.
-    char[] buffer = this.buffer;
+    byte[] buffer = this.buffer;
     do {
       int p = pos;
       int l = limit;
-      /* the index of the first character not yet appended to the builder. */
       while (p < l) {
         int c = buffer[p++];
         if (c == quote) {
@@ -1154,6 +1044,7 @@ public class JsonReader implements Closeable {
           return;
         } else if (c == '\\') {
           pos = p;
+          scratchLength = 0;
           readEscapeCharacter();
           p = pos;
           l = limit;
@@ -1198,69 +1089,16 @@ public class JsonReader implements Closeable {
   }
 
   /**
-   * Returns the {@link com.google.gson.stream.JsonToken#NUMBER int} value of the next token,
-   * consuming it. If the next token is a string, this method will attempt to
-   * parse it as an int. If the next token's numeric value cannot be exactly
-   * represented by a Java {@code int}, this method throws.
-   *
-   * @throws IllegalStateException if the next token is not a literal value.
-   * @throws NumberFormatException if the next literal value cannot be parsed
-   *     as a number, or exactly represented as an int.
-   */
-  public int nextInt() throws IOException {
-    int p = peeked;
-    if (p == PEEKED_NONE) {
-      p = doPeek();
-    }
-
-    int result;
-    if (p == PEEKED_LONG) {
-      result = (int) peekedLong;
-      if (peekedLong != result) { // Make sure no precision was lost casting to 'int'.
-        throw new NumberFormatException("Expected an int but was " + peekedLong
-            + " at line " + getLineNumber() + " column " + getColumnNumber());
-      }
-      peeked = PEEKED_NONE;
-      return result;
-    }
-
-    if (p == PEEKED_NUMBER) {
-      peekedString = new String(buffer, pos, peekedNumberLength);
-      pos += peekedNumberLength;
-    } else if (p == PEEKED_SINGLE_QUOTED || p == PEEKED_DOUBLE_QUOTED) {
-      peekedString = nextQuotedValue(p == PEEKED_SINGLE_QUOTED ? '\'' : '"');
-      try {
-        result = Integer.parseInt(peekedString);
-        peeked = PEEKED_NONE;
-        return result;
-      } catch (NumberFormatException ignored) {
-        // Fall back to parse as a double below.
-      }
-    } else {
-      throw new IllegalStateException("Expected an int but was " + peek()
-          + " at line " + getLineNumber() + " column " + getColumnNumber());
-    }
-
-    peeked = PEEKED_BUFFERED;
-    double asDouble = Double.parseDouble(peekedString); // don't catch this NumberFormatException.
-    result = (int) asDouble;
-    if (result != asDouble) { // Make sure no precision was lost casting to 'int'.
-      throw new NumberFormatException("Expected an int but was " + peekedString
-          + " at line " + getLineNumber() + " column " + getColumnNumber());
-    }
-    peekedString = null;
-    peeked = PEEKED_NONE;
-    return result;
-  }
-
-  /**
-   * Closes this JSON reader and the underlying {@link java.io.Reader}.
+   * Closes this JSON reader and the underlying {@link InputStream}, if any.
+   * A source array is left untouched.
    */
   public void close() throws IOException {
     peeked = PEEKED_NONE;
     stack[0] = JsonScope.CLOSED;
     stackSize = 1;
-    in.close();
+    if (in != null) {
+      in.close();
+    }
   }
 
   /**
@@ -1294,7 +1132,7 @@ public class JsonReader implements Closeable {
         skipQuotedValue('\'');
       } else if (p == PEEKED_DOUBLE_QUOTED || p == PEEKED_DOUBLE_QUOTED_NAME) {
         skipQuotedValue('"');
-      } else if (p == PEEKED_NUMBER) {
+      } else if (p == PEEKED_NUMBER || p == PEEKED_LONG) {
         pos += peekedNumberLength;
       }
       peeked = PEEKED_NONE;
@@ -1312,11 +1150,17 @@ public class JsonReader implements Closeable {
 
   /**
    * Returns true once {@code limit - pos >= minimum}. If the data is
-   * exhausted before that many characters are available, this returns
-   * false.
+   * exhausted before that many bytes are available, this returns false.
    */
   private boolean fillBuffer(int minimum) throws IOException {
-    char[] buffer = this.buffer;
+    if (in == null) {
+      return limit - pos >= minimum;
+    }
+
+    byte[] buffer = this.buffer;
+    if (pos != 0) {
+      bomChecked = true; // something has been consumed already
+    }
     lineStart -= pos;
     if (limit != pos) {
       limit -= pos;
@@ -1331,10 +1175,13 @@ public class JsonReader implements Closeable {
       limit += total;
 
       // if this is the first read, consume an optional byte order mark (BOM) if it exists
-      if (lineNumber == 0 && lineStart == 0 && limit > 0 && buffer[0] == '\ufeff') {
-        pos++;
-        lineStart++;
-        minimum++;
+      if (!bomChecked && limit >= 3) {
+        bomChecked = true;
+        if (buffer[0] == (byte) 0xef && buffer[1] == (byte) 0xbb && buffer[2] == (byte) 0xbf) {
+          pos += 3;
+          lineStart += 3;
+          minimum += 3;
+        }
       }
 
       if (limit >= minimum) {
@@ -1353,10 +1200,10 @@ public class JsonReader implements Closeable {
   }
 
   /**
-   * Returns the next character in the stream that is neither whitespace nor a
-   * part of a comment. When this returns, the returned character is always at
+   * Returns the next byte in the stream that is neither whitespace nor a
+   * part of a comment. When this returns, the returned byte is always at
    * {@code buffer[pos-1]}; this means the caller can always push back the
-   * returned character by decrementing {@code pos}.
+   * returned byte by decrementing {@code pos}.
    */
   private int nextNonWhitespace(boolean throwOnEof) throws IOException {
     /*
@@ -1367,7 +1214,7 @@ public class JsonReader implements Closeable {
      * before any (potentially indirect) call to fillBuffer() and reread both
      * 'p' and 'l' after any (potentially indirect) call to the same method.
      */
-    char[] buffer = this.buffer;
+    byte[] buffer = this.buffer;
     int p = pos;
     int l = limit;
     while (true) {
@@ -1380,7 +1227,7 @@ public class JsonReader implements Closeable {
         l = limit;
       }
 
-      int c = buffer[p++];
+      int c = buffer[p++] & 0xff;
       if (c == '\n') {
         lineNumber++;
         lineStart = p;
@@ -1401,7 +1248,7 @@ public class JsonReader implements Closeable {
         }
 
         checkLenient();
-        char peek = buffer[pos];
+        byte peek = buffer[pos];
         switch (peek) {
         case '*':
           // skip a /* c-style comment */
@@ -1461,7 +1308,7 @@ public class JsonReader implements Closeable {
    */
   private void skipToEndOfLine() throws IOException {
     while (pos < limit || fillBuffer(1)) {
-      char c = buffer[pos++];
+      byte c = buffer[pos++];
       if (c == '\n') {
         lineNumber++;
         lineStart = pos;
@@ -1500,56 +1347,59 @@ public class JsonReader implements Closeable {
 
   /**
    * Unescapes the character identified by the character or characters that
-   * immediately follow a backslash. The backslash '\' should have already
-   * been read. This supports both unicode escapes "u000A" and two-character
-   * escapes "\n".
+   * immediately follow a backslash and appends its UTF-8 form to the scratch
+   * array. The backslash '\' should have already been read. This supports
+   * both unicode escapes "u000A" and two-character escapes "\n". A pair of
+   * unicode escapes forming a surrogate pair is combined into a single
+   * supplementary character; a lone surrogate is replaced with '?'.
    *
    * @throws NumberFormatException if any unicode escape sequences are
    *     malformed.
    */
-  private char readEscapeCharacter() throws IOException {
+  private void readEscapeCharacter() throws IOException {
     if (pos == limit && !fillBuffer(1)) {
       throw syntaxError("Unterminated escape sequence");
     }
 
-    char escaped = buffer[pos++];
+    byte escaped = buffer[pos++];
     switch (escaped) {
     case 'u':
-      if (pos + 4 > limit && !fillBuffer(4)) {
-        throw syntaxError("Unterminated escape sequence");
-      }
-      // Equivalent to Integer.parseInt(stringPool.get(buffer, pos, 4), 16);
-      char result = 0;
-      for (int i = pos, end = i + 4; i < end; i++) {
-        char c = buffer[i];
-        result <<= 4;
-        if (c >= '0' && c <= '9') {
-          result += (c - '0');
-        } else if (c >= 'a' && c <= 'f') {
-          result += (c - 'a' + 10);
-        } else if (c >= 'A' && c <= 'F') {
-          result += (c - 'A' + 10);
-        } else {
-          throw new NumberFormatException("\\u" + new String(buffer, pos, 4));
+      char result = readUnicodeEscape();
+      while (Character.isHighSurrogate(result)
+          && (pos + 6 <= limit || fillBuffer(6))
+          && buffer[pos] == '\\' && buffer[pos + 1] == 'u') {
+        pos += 2;
+        char low = readUnicodeEscape();
+        if (Character.isLowSurrogate(low)) {
+          appendCodePoint(Character.toCodePoint(result, low));
+          return;
         }
+        appendCodePoint('?');
+        result = low;
       }
-      pos += 4;
-      return result;
+      appendCodePoint(Character.isHighSurrogate(result) || Character.isLowSurrogate(result)
+          ? '?' : result);
+      return;
 
     case 't':
-      return '\t';
+      appendCodePoint('\t');
+      return;
 
     case 'b':
-      return '\b';
+      appendCodePoint('\b');
+      return;
 
     case 'n':
-      return '\n';
+      appendCodePoint('\n');
+      return;
 
     case 'r':
-      return '\r';
+      appendCodePoint('\r');
+      return;
 
     case 'f':
-      return '\f';
+      appendCodePoint('\f');
+      return;
 
     case '\n':
       lineNumber++;
@@ -1560,10 +1410,59 @@ public class JsonReader implements Closeable {
     case '"':
     case '\\':
     default:
-      return escaped;
+      ensureScratch(1);
+      scratch[scratchLength++] = escaped;
     }
   }
 
+  /**
+   * Reads the four hex digits of a unicode escape sequence. The "\\u" prefix
+   * should have already been read.
+   */
+  private char readUnicodeEscape() throws IOException {
+    if (pos + 4 > limit && !fillBuffer(4)) {
+      throw syntaxError("Unterminated escape sequence");
+    }
+    char result = 0;
+    for (int i = pos, end = i + 4; i < end; i++) {
+      byte c = buffer[i];
+      result <<= 4;
+      if (c >= '0' && c <= '9') {
+        result += (c - '0');
+      } else if (c >= 'a' && c <= 'f') {
+        result += (c - 'a' + 10);
+      } else if (c >= 'A' && c <= 'F') {
+        result += (c - 'A' + 10);
+      } else {
+        throw new NumberFormatException("\\u" + new String(buffer, pos, 4, "ISO-8859-1"));
+      }
+    }
+    pos += 4;
+    return result;
+  }
+
+  private void appendCodePoint(int codePoint) {
+    ensureScratch(4);
+    byte[] scratch = this.scratch;
+    int n = scratchLength;
+    if (codePoint < 0x80) {
+      scratch[n++] = (byte) codePoint;
+    } else if (codePoint < 0x800) {
+      scratch[n++] = (byte) (0xc0 | (codePoint >> 6));
+      scratch[n++] = (byte) (0x80 | (codePoint & 0x3f));
+    } else if (codePoint < 0x10000) {
+      scratch[n++] = (byte) (0xe0 | (codePoint >> 12));
+      scratch[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      scratch[n++] = (byte) (0x80 | (codePoint & 0x3f));
+    } else {
+      scratch[n++] = (byte) (0xf0 | (codePoint >> 18));
+      scratch[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+      scratch[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      scratch[n++] = (byte) (0x80 | (codePoint & 0x3f));
+    }
+    scratchLength = n;
+  }
+
   /**
    * Throws a new IO exception with the given message and a context snippet
    * with this reader's content.
@@ -1594,31 +1493,4 @@ public class JsonReader implements Closeable {
     // we consumed a security token!
     pos += NON_EXECUTE_PREFIX.length;
   }
-
-  /* gson.rb customization
-  static {
-    JsonReaderInternalAccess.INSTANCE = new JsonReaderInternalAccess() {
-      @Override public void promoteNameToValue(JsonReader reader) throws IOException {
-        if (reader instanceof JsonTreeReader) {
-          ((JsonTreeReader)reader).promoteNameToValue();
-          return;
-        }
-        int p = reader.peeked;
-        if (p == PEEKED_NONE) {
-          p = reader.doPeek();
-        }
-        if (p == PEEKED_DOUBLE_QUOTED_NAME) {
-          reader.peeked = PEEKED_DOUBLE_QUOTED;
-        } else if (p == PEEKED_SINGLE_QUOTED_NAME) {
-          reader.peeked = PEEKED_SINGLE_QUOTED;
-        } else if (p == PEEKED_UNQUOTED_NAME) {
-          reader.peeked = PEEKED_UNQUOTED;
-        } else {
-          throw new IllegalStateException("Expected a name but was " + reader.peek() + " "
-              + " at line " + reader.getLineNumber() + " column " + reader.getColumnNumber());
-        }
-      }
-    };
-  }
-  */
 }
@@ -0,0 +1,1171 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.gson.stream;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static com.google.gson.stream.JsonScope.DANGLING_NAME;
+import static com.google.gson.stream.JsonScope.EMPTY_ARRAY;
+import static com.google.gson.stream.JsonScope.EMPTY_DOCUMENT;
+import static com.google.gson.stream.JsonScope.EMPTY_OBJECT;
+import static com.google.gson.stream.JsonScope.NONEMPTY_ARRAY;
+import static com.google.gson.stream.JsonScope.NONEMPTY_DOCUMENT;
+import static com.google.gson.stream.JsonScope.NONEMPTY_OBJECT;
+
+/**
+ * gson.rb customization: a byte oriented variant of {@link JsonWriter}.
+ *
+ * <p>This writer produces UTF-8 directly into a byte array. Without an
+ * {@link OutputStream} the array simply grows, and {@link #bytes} and {@link
+ * #size} hand the encoded document over to the caller without copying it.
+ * With an {@link OutputStream} the array is a buffer which is written to the
+ * stream when it fills up and on {@link #flush}.
+ *
+ * <p>Names and strings may be given as UTF-8 bytes, which are escaped and
+ * copied as they are, or as Java strings, which are encoded on the fly.
+ * Apart from that this writer follows {@link JsonWriter} token by token,
+ * except that {@link #value(double)} accepts NaNs and infinities in lenient
+ * mode just like {@link #value(Number)}.
+ */
+public class Utf8JsonWriter implements Closeable, Flushable {
+
+  /*
+   * The escape sequences of JsonWriter as bytes. The UTF-8 sequences of
+   * '\u2028' and '\u2029' are escaped by the string writers themselves.
+   */
+  private static final byte[][] REPLACEMENT_BYTES;
+  private static final byte[][] HTML_SAFE_REPLACEMENT_BYTES;
+  static {
+    REPLACEMENT_BYTES = new byte[128][];
+    for (int i = 0; i <= 0x1f; i++) {
+      REPLACEMENT_BYTES[i] = ascii(String.format("\\u%04x", (int) i));
+    }
+    REPLACEMENT_BYTES['"'] = ascii("\\\"");
+    REPLACEMENT_BYTES['\\'] = ascii("\\\\");
+    REPLACEMENT_BYTES['\t'] = ascii("\\t");
+    REPLACEMENT_BYTES['\b'] = ascii("\\b");
+    REPLACEMENT_BYTES['\n'] = ascii("\\n");
+    REPLACEMENT_BYTES['\r'] = ascii("\\r");
+    REPLACEMENT_BYTES['\f'] = ascii("\\f");
+    HTML_SAFE_REPLACEMENT_BYTES = REPLACEMENT_BYTES.clone();
+    HTML_SAFE_REPLACEMENT_BYTES['<'] = ascii("\\u003c");
+    HTML_SAFE_REPLACEMENT_BYTES['>'] = ascii("\\u003e");
+    HTML_SAFE_REPLACEMENT_BYTES['&'] = ascii("\\u0026");
+    HTML_SAFE_REPLACEMENT_BYTES['='] = ascii("\\u003d");
+    HTML_SAFE_REPLACEMENT_BYTES['\''] = ascii("\\u0027");
+  }
+
+  /*
+   * Marks the bytes which a string literal can't hold as they are: the ones
+   * with a replacement, and 0xe2, which may start '\u2028' or '\u2029'. The
+   * string writers skip the runs of other bytes with one lookup per byte.
+   */
+  private static final boolean[] ESCAPED = new boolean[256];
+  private static final boolean[] HTML_SAFE_ESCAPED = new boolean[256];
+  static {
+    for (int i = 0; i < 128; i++) {
+      ESCAPED[i] = REPLACEMENT_BYTES[i] != null;
+      HTML_SAFE_ESCAPED[i] = HTML_SAFE_REPLACEMENT_BYTES[i] != null;
+    }
+    ESCAPED[0xe2] = true;
+    HTML_SAFE_ESCAPED[0xe2] = true;
+  }
+  private static final byte[] LINE_SEPARATOR = ascii("\\u2028");
+  private static final byte[] PARAGRAPH_SEPARATOR = ascii("\\u2029");
+  private static final byte[] NULL = ascii("null");
+  private static final byte[] TRUE = ascii("true");
+  private static final byte[] FALSE = ascii("false");
+
+  /** The two digit numbers from "00" to "99", for writing integers. */
+  private static final byte[] DIGIT_PAIRS = new byte[200];
+  static {
+    for (int i = 0; i < 100; i++) {
+      DIGIT_PAIRS[i * 2] = (byte) ('0' + i / 10);
+      DIGIT_PAIRS[i * 2 + 1] = (byte) ('0' + i % 10);
+    }
+  }
+
+  /** The powers of ten which are exactly representable as longs. */
+  private static final long[] LONG_POWERS_OF_TEN = new long[19];
+  /** The same powers as doubles; all of them are exact. */
+  private static final double[] POWERS_OF_TEN = new double[19];
+  static {
+    long power = 1;
+    for (int i = 0; i < LONG_POWERS_OF_TEN.length; i++) {
+      LONG_POWERS_OF_TEN[i] = power;
+      POWERS_OF_TEN[i] = power;
+      power *= 10;
+    }
+  }
+
+  /**
+   * The most significant digits {@link #writeShortDecimal} looks for. Up to
+   * 15 digits at most one decimal rounds to a given double, so the one found
+   * is the shortest and the one {@link Double#toString} prints.
+   */
+  private static final long MAX_SHORT_DECIMAL = 1000000000000000L;
+
+  /** Big integers are written in chunks of this many digits. */
+  private static final int CHUNK_DIGITS = 18;
+  private static final BigInteger CHUNK = BigInteger.valueOf(LONG_POWERS_OF_TEN[CHUNK_DIGITS]);
+
+  private static byte[] ascii(String value) {
+    byte[] bytes = new byte[value.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) value.charAt(i);
+    }
+    return bytes;
+  }
+
+  /** The stream to write to, or null to keep the whole document. */
+  private final OutputStream out;
+
+  /** The encoded bytes which haven't been written to the stream yet. */
+  private byte[] buffer;
+  private int count = 0;
+
+  private int[] stack = new int[32];
+  private int stackSize = 0;
+  {
+    push(EMPTY_DOCUMENT);
+  }
+
+  /**
+   * The UTF-8 bytes of a full set of spaces for a single level of
+   * indentation, or null for no pretty printing.
+   */
+  private byte[] indent;
+
+  /**
+   * The name/value separator; either ":" or ": ".
+   */
+  private byte[] separator = ascii(":");
+
+  private boolean lenient;
+
+  private boolean htmlSafe;
+
+  /** The name waiting for its value, as a slice of UTF-8 bytes. */
+  private byte[] deferredName;
+  private int deferredNameStart;
+  private int deferredNameLength;
+  /** True if the deferred name comes from {@link #encodeName}. */
+  private boolean deferredNameEncoded;
+  /** True if the encoded name has written the separator already. */
+  private boolean separatorWritten;
+
+  private boolean serializeNulls = true;
+
+  /**
+   * Creates a new instance that keeps the encoded document in memory,
+   * starting with an array of {@code initialCapacity} bytes.
+   */
+  public Utf8JsonWriter(int initialCapacity) {
+    this.out = null;
+    this.buffer = new byte[Math.max(initialCapacity, 16)];
+  }
+
+  /**
+   * Creates a new instance that keeps the encoded document in memory,
+   * appending it to the first {@code count} bytes of {@code buffer}, which
+   * are included in {@link #size}. The array is replaced by a larger copy
+   * if the document doesn't fit.
+   */
+  public Utf8JsonWriter(byte[] buffer, int count) {
+    this.out = null;
+    this.buffer = buffer;
+    this.count = count;
+  }
+
+  /**
+   * Creates a new instance that keeps the encoded document in memory.
+   */
+  public Utf8JsonWriter() {
+    this(256);
+  }
+
+  /**
+   * Creates a new instance that writes a UTF-8 encoded JSON stream to {@code
+   * out}, through a buffer of {@code bufferSize} bytes.
+   */
+  public Utf8JsonWriter(OutputStream out, int bufferSize) {
+    if (out == null) {
+      throw new NullPointerException("out == null");
+    }
+    this.out = out;
+    this.buffer = new byte[Math.max(bufferSize, 16)];
+  }
+
+  /**
+   * Creates a new instance that writes a UTF-8 encoded JSON stream to {@code
+   * out}, through the given buffer. The buffer may be reused once this
+   * writer has been flushed.
+   */
+  public Utf8JsonWriter(OutputStream out, byte[] buffer) {
+    if (out == null) {
+      throw new NullPointerException("out == null");
+    }
+    if (buffer.length < 16) {
+      throw new IllegalArgumentException("buffer is too small");
+    }
+    this.out = out;
+    this.buffer = buffer;
+  }
+
+  /**
+   * Creates a new instance that writes a UTF-8 encoded JSON stream to {@code
+   * out}.
+   */
+  public Utf8JsonWriter(OutputStream out) {
+    this(out, 8192);
+  }
+
+  /**
+   * Returns the array holding the encoded bytes. Without a stream these are
+   * the first {@link #size} bytes of the document, otherwise only the bytes
+   * which haven't been flushed yet.
+   */
+  public byte[] bytes() {
+    return buffer;
+  }
+
+  /**
+   * Returns the number of encoded bytes in {@link #bytes}.
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Sets the indentation string to be repeated for each level of indentation
+   * in the encoded document. If {@code indent.isEmpty()} the encoded document
+   * will be compact. Otherwise the encoded document will be more
+   * human-readable.
+   *
+   * @param indent a string containing only whitespace.
+   */
+  public final void setIndent(String indent) {
+    if (indent.length() == 0) {
+      this.indent = null;
+      this.separator = ascii(":");
+    } else {
+      this.indent = utf8(indent);
+      this.separator = ascii(": ");
+    }
+  }
+
+  /**
+   * Configure this writer to relax its syntax rules. See {@link
+   * JsonWriter#setLenient(boolean)}.
+   */
+  public final void setLenient(boolean lenient) {
+    this.lenient = lenient;
+  }
+
+  /**
+   * Returns true if this writer has relaxed syntax rules.
+   */
+  public boolean isLenient() {
+    return lenient;
+  }
+
+  /**
+   * Configure this writer to emit JSON that's safe for direct inclusion in HTML
+   * and XML documents. See {@link JsonWriter#setHtmlSafe(boolean)}.
+   */
+  public final void setHtmlSafe(boolean htmlSafe) {
+    this.htmlSafe = htmlSafe;
+  }
+
+  /**
+   * Returns true if this writer writes JSON that's safe for inclusion in HTML
+   * and XML documents.
+   */
+  public final boolean isHtmlSafe() {
+    return htmlSafe;
+  }
+
+  /**
+   * Sets whether object members are serialized when their value is null.
+   * This has no impact on array elements. The default is true.
+   */
+  public final void setSerializeNulls(boolean serializeNulls) {
+    this.serializeNulls = serializeNulls;
+  }
+
+  /**
+   * Returns true if object members are serialized when their value is null.
+   * This has no impact on array elements. The default is true.
+   */
+  public final boolean getSerializeNulls() {
+    return serializeNulls;
+  }
+
+  /**
+   * Begins encoding a new array. Each call to this method must be paired with
+   * a call to {@link #endArray}.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter beginArray() throws IOException {
+    writeDeferredName();
+    return open(EMPTY_ARRAY, '[');
+  }
+
+  /**
+   * Ends encoding the current array.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter endArray() throws IOException {
+    return close(EMPTY_ARRAY, NONEMPTY_ARRAY, ']');
+  }
+
+  /**
+   * Begins encoding a new object. Each call to this method must be paired
+   * with a call to {@link #endObject}.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter beginObject() throws IOException {
+    writeDeferredName();
+    return open(EMPTY_OBJECT, '{');
+  }
+
+  /**
+   * Ends encoding the current object.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter endObject() throws IOException {
+    return close(EMPTY_OBJECT, NONEMPTY_OBJECT, '}');
+  }
+
+  /**
+   * Enters a new scope by appending any necessary whitespace and the given
+   * bracket.
+   */
+  private Utf8JsonWriter open(int empty, char openBracket) throws IOException {
+    beforeValue(true);
+    push(empty);
+    write(openBracket);
+    return this;
+  }
+
+  /**
+   * Closes the current scope by appending any necessary whitespace and the
+   * given bracket.
+   */
+  private Utf8JsonWriter close(int empty, int nonempty, char closeBracket)
+      throws IOException {
+    int context = peek();
+    if (context != nonempty && context != empty) {
+      throw new IllegalStateException("Nesting problem.");
+    }
+    if (deferredName != null) {
+      throw new IllegalStateException("Dangling name: "
+          + new String(deferredName, deferredNameStart, deferredNameLength, "UTF-8"));
+    }
+
+    stackSize--;
+    if (context == nonempty) {
+      newline();
+    }
+    write(closeBracket);
+    return this;
+  }
+
+  private void push(int newTop) {
+    if (stackSize == stack.length) {
+      int[] newStack = new int[stackSize * 2];
+      System.arraycopy(stack, 0, newStack, 0, stackSize);
+      stack = newStack;
+    }
+    stack[stackSize++] = newTop;
+  }
+
+  /**
+   * Returns the value on the top of the stack.
+   */
+  private int peek() {
+    if (stackSize == 0) {
+      throw new IllegalStateException("JsonWriter is closed.");
+    }
+    return stack[stackSize - 1];
+  }
+
+  /**
+   * Replace the value on the top of the stack with the given value.
+   */
+  private void replaceTop(int topOfStack) {
+    stack[stackSize - 1] = topOfStack;
+  }
+
+  /**
+   * Encodes the property name.
+   *
+   * @param name the name of the forthcoming value. May not be null.
+   * @return this writer.
+   */
+  public Utf8JsonWriter name(String name) throws IOException {
+    if (name == null) {
+      throw new NullPointerException("name == null");
+    }
+    byte[] bytes = utf8(name);
+    return name(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Encodes the property name given as {@code length} UTF-8 bytes of {@code
+   * bytes} starting at {@code start}. The bytes must not change until the
+   * value of the name has been written.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter name(byte[] bytes, int start, int length) throws IOException {
+    if (bytes == null) {
+      throw new NullPointerException("name == null");
+    }
+    if (deferredName != null) {
+      throw new IllegalStateException();
+    }
+    if (stackSize == 0) {
+      throw new IllegalStateException("JsonWriter is closed.");
+    }
+    deferredName = bytes;
+    deferredNameStart = start;
+    deferredNameLength = length;
+    return this;
+  }
+
+  /**
+   * Encodes a property name prepared by {@link #encodeName}. The array must
+   * not change until the value of the name has been written.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter encodedName(byte[] encoded) throws IOException {
+    name(encoded, 0, encoded.length);
+    deferredNameEncoded = true;
+    return this;
+  }
+
+  /**
+   * Returns the name as this writer writes it before a value: quoted,
+   * escaped and followed by the separator. The result can be given to
+   * {@link #encodedName} of any writer with the same settings, which copies
+   * it as it is.
+   */
+  public byte[] encodeName(byte[] bytes, int start, int length) throws IOException {
+    Utf8JsonWriter writer = new Utf8JsonWriter(length + 8);
+    writer.htmlSafe = htmlSafe;
+    writer.string(bytes, start, length);
+    writer.write(separator);
+    return Arrays.copyOf(writer.buffer, writer.count);
+  }
+
+  /**
+   * Returns the name as this writer writes it before a value. See {@link
+   * #encodeName(byte[], int, int)}.
+   */
+  public byte[] encodeName(String name) throws IOException {
+    Utf8JsonWriter writer = new Utf8JsonWriter(name.length() + 8);
+    writer.htmlSafe = htmlSafe;
+    writer.string(name);
+    writer.write(separator);
+    return Arrays.copyOf(writer.buffer, writer.count);
+  }
+
+  /**
+   * Writes a property name prepared by {@link #encodeName} right away,
+   * instead of deferring it to its value like {@link #encodedName}. The
+   * value must be written next. The caller leaves out the member if its
+   * value is null and nulls aren't serialized.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter member(byte[] encoded) throws IOException {
+    beforeMember(encoded);
+    replaceTop(DANGLING_NAME);
+    separatorWritten = true;
+    return this;
+  }
+
+  /**
+   * Writes a member with the number {@code value}. See {@link
+   * #member(byte[])}.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter member(byte[] encoded, long value) throws IOException {
+    beforeMember(encoded);
+    writeLong(value);
+    return this;
+  }
+
+  /**
+   * Writes a member with the number {@code value}, which must be finite
+   * unless this writer is lenient. See {@link #member(byte[])}.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter member(byte[] encoded, double value) throws IOException {
+    if (!lenient && (Double.isNaN(value) || Double.isInfinite(value))) {
+      throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+    }
+    beforeMember(encoded);
+    if (!writeShortDecimal(value)) {
+      writeAscii(Double.toString(value));
+    }
+    return this;
+  }
+
+  /**
+   * Writes a member with the string given as {@code length} UTF-8 bytes of
+   * {@code bytes} starting at {@code start}. See {@link #member(byte[])}.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter member(byte[] encoded, byte[] bytes, int start, int length)
+      throws IOException {
+    beforeMember(encoded);
+    string(bytes, start, length);
+    return this;
+  }
+
+  /**
+   * Inserts the separator and whitespace before a member of the current
+   * object, and its encoded name.
+   */
+  private void beforeMember(byte[] encoded) throws IOException {
+    if (deferredName != null) {
+      throw new IllegalStateException();
+    }
+    int context = peek();
+    if (context == NONEMPTY_OBJECT) {
+      write(',');
+    } else if (context == EMPTY_OBJECT) {
+      replaceTop(NONEMPTY_OBJECT);
+    } else {
+      throw new IllegalStateException("Nesting problem.");
+    }
+    newline();
+    write(encoded);
+  }
+
+  private void writeDeferredName() throws IOException {
+    if (deferredName != null) {
+      beforeName();
+      if (deferredNameEncoded) {
+        write(deferredName, deferredNameStart, deferredNameLength);
+        separatorWritten = true;
+        deferredNameEncoded = false;
+      } else {
+        string(deferredName, deferredNameStart, deferredNameLength);
+      }
+      deferredName = null;
+    }
+  }
+
+  /**
+   * Encodes {@code value}.
+   *
+   * @param value the literal string value, or null to encode a null literal.
+   * @return this writer.
+   */
+  public Utf8JsonWriter value(String value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    writeDeferredName();
+    beforeValue(false);
+    string(value);
+    return this;
+  }
+
+  /**
+   * Encodes the string given as {@code length} UTF-8 bytes of {@code bytes}
+   * starting at {@code start}.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter value(byte[] bytes, int start, int length) throws IOException {
+    writeDeferredName();
+    beforeValue(false);
+    string(bytes, start, length);
+    return this;
+  }
+
+  /**
+   * Encodes {@code null}.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter nullValue() throws IOException {
+    if (deferredName != null) {
+      if (serializeNulls) {
+        writeDeferredName();
+      } else {
+        deferredName = null;
+        deferredNameEncoded = false;
+        return this; // skip the name and the value
+      }
+    }
+    beforeValue(false);
+    write(NULL);
+    return this;
+  }
+
+  /**
+   * Encodes {@code value}.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter value(boolean value) throws IOException {
+    writeDeferredName();
+    beforeValue(false);
+    write(value ? TRUE : FALSE);
+    return this;
+  }
+
+  /**
+   * Encodes {@code value}.
+   *
+   * @param value a finite value, unless this writer is lenient.
+   * @return this writer.
+   */
+  public Utf8JsonWriter value(double value) throws IOException {
+    if (!lenient && (Double.isNaN(value) || Double.isInfinite(value))) {
+      throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+    }
+    writeDeferredName();
+    beforeValue(false);
+    if (!writeShortDecimal(value)) {
+      writeAscii(Double.toString(value));
+    }
+    return this;
+  }
+
+  /**
+   * Encodes {@code value}.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter value(long value) throws IOException {
+    writeDeferredName();
+    beforeValue(false);
+    writeLong(value);
+    return this;
+  }
+
+  /**
+   * Encodes {@code value}.
+   *
+   * @return this writer.
+   */
+  public Utf8JsonWriter value(BigInteger value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    writeDeferredName();
+    beforeValue(false);
+    if (value.bitLength() < 64) {
+      writeLong(value.longValue());
+    } else {
+      writeBigInteger(value);
+    }
+    return this;
+  }
+
+  /**
+   * Encodes {@code value}.
+   *
+   * @param value a finite value. May not be {@link Double#isNaN() NaNs} or
+   *     {@link Double#isInfinite() infinities}.
+   * @return this writer.
+   */
+  public Utf8JsonWriter value(Number value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+
+    writeDeferredName();
+    String string = value.toString();
+    if (!lenient
+        && (string.equals("-Infinity") || string.equals("Infinity") || string.equals("NaN"))) {
+      throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+    }
+    beforeValue(false);
+    writeAscii(string);
+    return this;
+  }
+
+  /**
+   * Appends the elements of an array, or the members of an object, which
+   * {@code other} has encoded as its own top-level array or object, to
+   * the array or object open at the top level of this writer. Both writers
+   * must have the same settings, so that the elements are separated and
+   * indented just as if this writer had encoded them itself.
+   *
+   * @param other an in-memory writer holding a complete array or object.
+   * @return this writer.
+   */
+  public Utf8JsonWriter splice(Utf8JsonWriter other) throws IOException {
+    int context = peek();
+    boolean array = context == EMPTY_ARRAY || context == NONEMPTY_ARRAY;
+    if (stackSize != 2 || deferredName != null
+        || (!array && context != EMPTY_OBJECT && context != NONEMPTY_OBJECT)
+        || other.count < 2 || other.buffer[0] != (array ? '[' : '{')) {
+      throw new IllegalStateException("Nesting problem.");
+    }
+    // leave out the brackets, and the line break before the closing one
+    int end = other.count - 1;
+    if (indent != null && end > 1) {
+      end--;
+    }
+    if (end <= 1) {
+      return this;
+    }
+    if (context == NONEMPTY_ARRAY || context == NONEMPTY_OBJECT) {
+      write(',');
+    }
+    replaceTop(array ? NONEMPTY_ARRAY : NONEMPTY_OBJECT);
+    write(other.buffer, 1, end - 1);
+    return this;
+  }
+
+  /**
+   * Writes the buffered bytes to the {@link OutputStream} and flushes it.
+   * Without a stream it only checks that this writer is open.
+   */
+  public void flush() throws IOException {
+    if (stackSize == 0) {
+      throw new IllegalStateException("JsonWriter is closed.");
+    }
+    if (out != null) {
+      flushBuffer();
+      out.flush();
+    }
+  }
+
+  /**
+   * Flushes and closes this writer and the underlying {@link OutputStream}.
+   *
+   * @throws IOException if the JSON document is incomplete.
+   */
+  public void close() throws IOException {
+    if (out != null) {
+      flushBuffer();
+      out.close();
+    }
+
+    int size = stackSize;
+    if (size > 1 || size == 1 && stack[size - 1] != NONEMPTY_DOCUMENT) {
+      throw new IOException("Incomplete document");
+    }
+    stackSize = 0;
+  }
+
+  private void flushBuffer() throws IOException {
+    if (count > 0) {
+      out.write(buffer, 0, count);
+      count = 0;
+    }
+  }
+
+  /**
+   * Makes room for {@code length} more bytes in the buffer, writing its
+   * content to the stream or growing it.
+   */
+  private void require(int length) throws IOException {
+    if (count + length <= buffer.length) {
+      return;
+    }
+    if (out != null) {
+      flushBuffer();
+      if (length <= buffer.length) {
+        return;
+      }
+    }
+    byte[] newBuffer = new byte[Math.max(buffer.length * 2, count + length)];
+    System.arraycopy(buffer, 0, newBuffer, 0, count);
+    buffer = newBuffer;
+  }
+
+  private void write(char c) throws IOException {
+    if (count == buffer.length) {
+      require(1);
+    }
+    buffer[count++] = (byte) c;
+  }
+
+  private void write(byte[] bytes) throws IOException {
+    write(bytes, 0, bytes.length);
+  }
+
+  private void write(byte[] bytes, int start, int length) throws IOException {
+    require(length);
+    System.arraycopy(bytes, start, buffer, count, length);
+    count += length;
+  }
+
+  private void writeAscii(String value) throws IOException {
+    int length = value.length();
+    require(length);
+    for (int i = 0; i < length; i++) {
+      buffer[count++] = (byte) value.charAt(i);
+    }
+  }
+
+  /**
+   * Writes the decimal digits of {@code value} like {@link Long#toString},
+   * two at a time from a table.
+   */
+  private void writeLong(long value) throws IOException {
+    if (value == Long.MIN_VALUE) {
+      writeAscii(Long.toString(value));
+      return;
+    }
+    require(20);
+    if (value < 0) {
+      buffer[count++] = '-';
+      value = -value;
+    }
+    int length = digitCount(value);
+    writeDigits(value, count + length);
+    count += length;
+  }
+
+  /**
+   * Writes the decimal digits of a big integer, splitting it into chunks
+   * which are written like longs.
+   */
+  private void writeBigInteger(BigInteger value) throws IOException {
+    boolean negative = value.signum() < 0;
+    BigInteger magnitude = value.abs();
+    long[] chunks = new long[magnitude.bitLength() / 59 + 1];
+    int chunkCount = 0;
+    while (magnitude.bitLength() >= 63) {
+      BigInteger[] division = magnitude.divideAndRemainder(CHUNK);
+      chunks[chunkCount++] = division[1].longValue();
+      magnitude = division[0];
+    }
+    long first = magnitude.longValue();
+    int length = digitCount(first);
+    require(length + chunkCount * CHUNK_DIGITS + 1);
+    if (negative) {
+      buffer[count++] = '-';
+    }
+    writeDigits(first, count + length);
+    count += length;
+    while (chunkCount > 0) {
+      writeFraction(chunks[--chunkCount], CHUNK_DIGITS);
+    }
+  }
+
+  /**
+   * Writes the digits of a positive value into the buffer, ending before
+   * {@code end}.
+   */
+  private void writeDigits(long value, int end) {
+    int position = end;
+    while (value >= 100) {
+      int pair = (int) (value % 100) * 2;
+      value /= 100;
+      buffer[--position] = DIGIT_PAIRS[pair + 1];
+      buffer[--position] = DIGIT_PAIRS[pair];
+    }
+    int pair = (int) value * 2;
+    buffer[--position] = DIGIT_PAIRS[pair + 1];
+    if (value >= 10) {
+      buffer[--position] = DIGIT_PAIRS[pair];
+    }
+  }
+
+  private static int digitCount(long value) {
+    int length = 1;
+    while (length < LONG_POWERS_OF_TEN.length && value >= LONG_POWERS_OF_TEN[length]) {
+      length++;
+    }
+    return length;
+  }
+
+  /**
+   * Writes a double the way {@link Double#toString} does, without going
+   * through a string, if it is zero or a decimal of at most 15 significant
+   * digits which {@link Double#toString} prints without an exponent, that
+   * is between 10<sup>-3</sup> and 10<sup>7</sup>. These are the numbers
+   * most documents are made of; for any other value it returns false and
+   * writes nothing.
+   *
+   * <p>The digits are found by scaling the value with growing powers of ten
+   * until the rounded result divided by the same power gives the value
+   * back. Both the scaled value and the quotient are exact enough for
+   * numbers below 10<sup>15</sup>, so the first scale which fits is the
+   * shortest decimal.
+   */
+  private boolean writeShortDecimal(double value) throws IOException {
+    if (value == 0) {
+      require(4);
+      if (Double.doubleToRawLongBits(value) != 0) {
+        buffer[count++] = '-';
+      }
+      buffer[count++] = '0';
+      buffer[count++] = '.';
+      buffer[count++] = '0';
+      return true;
+    }
+    double magnitude = Math.abs(value);
+    if (!(magnitude >= 1e-3 && magnitude < 1e7)) {
+      return false;
+    }
+    for (int scale = 0; scale < POWERS_OF_TEN.length; scale++) {
+      double scaled = magnitude * POWERS_OF_TEN[scale];
+      if (scaled >= MAX_SHORT_DECIMAL) {
+        return false;
+      }
+      long digits = Math.round(scaled);
+      if (digits / POWERS_OF_TEN[scale] == magnitude) {
+        writeDecimal(value < 0, digits, scale);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes digits &times; 10<sup>-scale</sup> in plain notation, with at
+   * least one digit on either side of the point.
+   */
+  private void writeDecimal(boolean negative, long digits, int scale) throws IOException {
+    int length = digitCount(digits);
+    int integerLength = Math.max(length - scale, 1);
+    int fractionLength = Math.max(scale, 1);
+    require(integerLength + fractionLength + 2);
+    if (negative) {
+      buffer[count++] = '-';
+    }
+    if (scale == 0) {
+      writeDigits(digits, count + length);
+      count += length;
+      buffer[count++] = '.';
+      buffer[count++] = '0';
+    } else if (length > scale) {
+      long unit = LONG_POWERS_OF_TEN[scale];
+      writeDigits(digits / unit, count + integerLength);
+      count += integerLength;
+      buffer[count++] = '.';
+      writeFraction(digits % unit, scale);
+    } else {
+      buffer[count++] = '0';
+      buffer[count++] = '.';
+      writeFraction(digits, scale);
+    }
+  }
+
+  /**
+   * Writes {@code scale} digits, padded with leading zeros; the fraction
+   * of a decimal or a chunk of a big integer.
+   */
+  private void writeFraction(long digits, int scale) {
+    int length = digitCount(digits);
+    for (int i = length; i < scale; i++) {
+      buffer[count++] = '0';
+    }
+    writeDigits(digits, count + length);
+    count += length;
+  }
+
+  /**
+   * Writes UTF-8 bytes as a string literal, replacing the characters which
+   * must be escaped.
+   */
+  private void string(byte[] bytes, int start, int length) throws IOException {
+    byte[][] replacements = htmlSafe ? HTML_SAFE_REPLACEMENT_BYTES : REPLACEMENT_BYTES;
+    boolean[] escaped = htmlSafe ? HTML_SAFE_ESCAPED : ESCAPED;
+    write('"');
+    int last = start;
+    int end = start + length;
+    int i = start;
+    while (true) {
+      while (i < end && !escaped[bytes[i] & 0xff]) {
+        i++;
+      }
+      if (i == end) {
+        break;
+      }
+      byte b = bytes[i];
+      byte[] replacement;
+      int skip = 1;
+      if (b >= 0) {
+        replacement = replacements[b];
+      } else if (i + 2 < end && bytes[i + 1] == (byte) 0x80
+          && (bytes[i + 2] == (byte) 0xa8 || bytes[i + 2] == (byte) 0xa9)) {
+        replacement = bytes[i + 2] == (byte) 0xa8 ? LINE_SEPARATOR : PARAGRAPH_SEPARATOR;
+        skip = 3;
+      } else {
+        i++;
+        continue;
+      }
+      if (last < i) {
+        write(bytes, last, i - last);
+      }
+      write(replacement);
+      i += skip;
+      last = i;
+    }
+    if (last < end) {
+      write(bytes, last, end - last);
+    }
+    write('"');
+  }
+
+  /**
+   * Writes a Java string as a string literal, encoding it to UTF-8 and
+   * replacing the characters which must be escaped. Unpaired surrogates are
+   * written as '?', as {@link String#getBytes(String)} does.
+   */
+  private void string(String value) throws IOException {
+    byte[][] replacements = htmlSafe ? HTML_SAFE_REPLACEMENT_BYTES : REPLACEMENT_BYTES;
+    write('"');
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        byte[] replacement = replacements[c];
+        if (replacement == null) {
+          write(c);
+        } else {
+          write(replacement);
+        }
+      } else if (c < 0x800) {
+        require(2);
+        buffer[count++] = (byte) (0xc0 | (c >> 6));
+        buffer[count++] = (byte) (0x80 | (c & 0x3f));
+      } else if (c == '\u2028') {
+        write(LINE_SEPARATOR);
+      } else if (c == '\u2029') {
+        write(PARAGRAPH_SEPARATOR);
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        require(4);
+        buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        write('?');
+      } else {
+        require(3);
+        buffer[count++] = (byte) (0xe0 | (c >> 12));
+        buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[count++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    write('"');
+  }
+
+  private static byte[] utf8(String value) {
+    try {
+      return value.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      throw new AssertionError(ex);
+    }
+  }
+
+  private void newline() throws IOException {
+    if (indent == null) {
+      return;
+    }
+
+    write('\n');
+    for (int i = 1, size = stackSize; i < size; i++) {
+      write(indent);
+    }
+  }
+
+  /**
+   * Inserts any necessary separators and whitespace before a name. Also
+   * adjusts the stack to expect the name's value.
+   */
+  private void beforeName() throws IOException {
+    int context = peek();
+    if (context == NONEMPTY_OBJECT) { // first in object
+      write(',');
+    } else if (context != EMPTY_OBJECT) { // not in an object!
+      throw new IllegalStateException("Nesting problem.");
+    }
+    newline();
+    replaceTop(DANGLING_NAME);
+  }
+
+  /**
+   * Inserts any necessary separators and whitespace before a literal value,
+   * inline array, or inline object. Also adjusts the stack to expect either a
+   * closing bracket or another element.
+   *
+   * @param root true if the value is a new array or object, the two values
+   *     permitted as top-level elements.
+   */
+  @SuppressWarnings("fallthrough")
+  private void beforeValue(boolean root) throws IOException {
+    switch (peek()) {
+    case NONEMPTY_DOCUMENT:
+      if (!lenient) {
+        throw new IllegalStateException(
+            "JSON must have only one top-level value.");
+      }
+      // fall-through
+    case EMPTY_DOCUMENT: // first in document
+      if (!lenient && !root) {
+        throw new IllegalStateException(
+            "JSON must start with an array or an object.");
+      }
+      replaceTop(NONEMPTY_DOCUMENT);
+      break;
+
+    case EMPTY_ARRAY: // first in array
+      replaceTop(NONEMPTY_ARRAY);
+      newline();
+      break;
+
+    case NONEMPTY_ARRAY: // another in array
+      write(',');
+      newline();
+      break;
+
+    case DANGLING_NAME: // value for name
+      if (separatorWritten) {
+        separatorWritten = false;
+      } else {
+        write(separator);
+      }
+      replaceTop(NONEMPTY_OBJECT);
+      break;
+
+    default:
+      throw new IllegalStateException("Nesting problem.");
+    }
+  }
+}
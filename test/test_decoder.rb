@@ -1,6 +1,8 @@
 require 'minitest/autorun'
 require 'gson'
 require 'stringio'
+require 'tmpdir'
+require 'weakref'
 require 'json/pure'
 
 class TestDecoder < MiniTest::Unit::TestCase
@@ -21,6 +23,158 @@ class TestDecoder < MiniTest::Unit::TestCase
     assert_equal expected, decoder.decode('{"foo":"bar"}')
   end
 
+  def test_it_reuses_frozen_keys_across_documents
+    decoder = Gson::Decoder.new
+    first = decoder.decode('{"foo":1}').keys.first
+    second = decoder.decode('[{"foo":2}]').first.keys.first
+    assert first.frozen?
+    assert_same first, second
+
+    decoder = Gson::Decoder.new(:key_cache => false)
+    first = decoder.decode('{"foo":1}').keys.first
+    refute_same first, decoder.decode('{"foo":1}').keys.first
+
+    first = Gson::Decoder.new(:key_cache => :shared).decode('{"foo":1}').keys.first
+    assert_same first, Gson::Decoder.new(:key_cache => :shared).decode('{"foo":1}').keys.first
+  end
+
+  def test_it_decodes_strings_to_utf8
+    decoder = Gson::Decoder.new
+    e_acute = "\xC3\xA9"
+    g_clef = "\xF0\x9D\x84\x9E"
+    if defined?(Encoding)
+      e_acute.force_encoding("UTF-8")
+      g_clef.force_encoding("UTF-8")
+    end
+    source = '{"caf\u00e9":"\u00e9\ud834\udd1e","raw":"' + e_acute + '"}'
+    expected = {"caf" + e_acute => e_acute + g_clef, "raw" => e_acute}
+    assert_equal expected, decoder.decode(source)
+    if defined?(Encoding)
+      assert_equal expected, decoder.decode(source.dup.force_encoding("BINARY"))
+    end
+  end
+
+  def test_it_decodes_numbers
+    source = '[1, -9223372036854775808, 9223372036854775808, 1.5, 2e3, 1e, 0.1]'
+    expected = [1, -9223372036854775808, 9223372036854775808, 1.5, 2000.0, 1.0, 0.1]
+    decoder = Gson::Decoder.new
+    [decoder.decode(source), decoder.feed(source).first].each do |actual|
+      assert_equal expected, actual
+      assert_equal [Fixnum, Fixnum, Bignum, Float, Float, Float, Float], actual.map(&:class)
+    end
+  end
+
+  def test_it_decodes_deeply_nested_documents
+    source = '[{"a":' * 40 + '[]' + '}]' * 40
+    decoder = Gson::Decoder.new
+    2.times do
+      actual = decoder.decode(source)
+      40.times { actual = actual.first["a"] }
+      assert_equal [], actual
+    end
+  end
+
+  def test_it_decodes_documents_lazily
+    source = '{"id":7,"user":{"name":"bob","tags":["a","b\\u00e9"]},"ratio":0.5,"ok":true,"none":null}'
+    b_acute = "b\303\251"
+    b_acute.force_encoding("UTF-8") if defined?(Encoding)
+    doc = Gson::Decoder.new.decode_lazy(source)
+    assert_kind_of Gson::LazyDocument, doc
+    assert_equal 7, doc["id"]
+    assert_equal 0.5, doc[:ratio]
+    assert_nil doc["missing"]
+    assert_equal "bob", doc.dig("user", "name")
+    assert_equal b_acute, doc.dig("user", "tags", -1)
+    assert_nil doc.dig("missing", "name")
+    assert_equal %w(id user ratio ok none), doc.keys
+    assert_equal 5, doc.size
+    assert_equal ["a", b_acute], doc["user"]["tags"].to_a
+    assert_equal ["a", b_acute], doc["user"]["tags"].map { |tag| tag }
+    assert_equal JSON.parse(source), doc.to_h
+    assert_equal 1, Gson::Decoder.new.decode_lazy('1')
+
+    doc = Gson::Decoder.new.decode_lazy('{"a":1,"a":[2]}')
+    assert_equal [2], doc["a"].to_a
+    assert_equal doc.to_h["a"], doc["a"].to_a
+    assert_raises(TypeError) { doc.dig("a", 0, "b") }
+  end
+
+  def test_it_encodes_lazy_documents_back
+    source = '{"a":1,"b":[1.5,{"x":"y"},[]],"c":{},"d":null}'
+    doc = Gson::Decoder.new.decode_lazy(source)
+    encoder = Gson::Encoder.new
+    assert_equal source, encoder.encode(doc)
+    assert_equal '[{"x":"y"},[]]', encoder.encode([doc["b"][1], doc["b"][2]])
+    assert_equal '[1,2]', encoder.encode(Gson::Decoder.new.decode_lazy('[1,2]'))
+  end
+
+  def test_it_decodes_only_selected_paths
+    source = '{"id":1,"text":"hi","user":{"id":2,"name":"bob"},' +
+      '"entities":{"urls":[{"url":"a","indices":[0,1]},{"url":"b"}],"tags":[]},"list":[[1,2],[3,4]]}'
+    paths = ["id", "user.name", "entities.urls[*].url", "list[1][0]", "missing.id"]
+    expected = {
+      "id" => 1,
+      "user" => {"name" => "bob"},
+      "entities" => {"urls" => [{"url" => "a"}, {"url" => "b"}]},
+      "list" => [[3]]
+    }
+    assert_equal expected, Gson::Decoder.new(:only => paths).decode(source)
+
+    decoder = Gson::Decoder.new(:only => paths)
+    docs = source.scan(/.{1,7}/m).map { |chunk| decoder.feed(chunk) }.flatten
+    docs.concat(decoder.finish)
+    assert_equal [expected], docs
+
+    assert_equal [{"a" => [1, 2]}], Gson::Decoder.new(:only => "[*].a").decode('[{"a":[1,2],"b":3}]')
+    assert_raises(ArgumentError) { Gson::Decoder.new(:only => "user..id") }
+  end
+
+  def test_it_decodes_lines_in_parallel
+    lines = (1..5000).map { |i| %Q({"id":#{i},"tags":["t#{i % 7}"]}) }
+    expected = (1..5000).map { |i| {"id" => i, "tags" => ["t#{i % 7}"]} }
+    source = lines.join("\n") + "\n\n"
+
+    docs = []
+    Gson::Decoder.new.decode_lines(source, :parallelism => 4) { |doc| docs << doc }
+    assert_equal expected, docs
+    assert_equal expected, Gson::Decoder.new.decode_lines(StringIO.new(source), :parallelism => 3).to_a
+    unordered = Gson::Decoder.new.decode_lines(source, :ordered => false).to_a
+    assert_equal expected, unordered.sort_by { |doc| doc["id"] }
+
+    error = assert_raises(Gson::DecodeError) do
+      Gson::Decoder.new.decode_lines("[1]\n{\"a\":\n[2]\n", :parallelism => 2) {}
+    end
+    assert_match(/^line 2: /, error.message)
+  end
+
+  def test_it_releases_yielded_batches
+    lines = (1..40000).map { |i| %Q({"id":#{i},"name":"name #{i}"}) }
+    first = nil
+    alive = nil
+    Gson::Decoder.new.decode_lines(lines.join("\n"), :parallelism => 2) do |doc|
+      first ||= WeakRef.new(doc)
+      if doc["id"] == 40000
+        3.times { java.lang.System.gc }
+        alive = first.weakref_alive?
+      end
+    end
+    refute alive, "the first batch is still referenced at the end of the input"
+  end
+
+  def test_it_decodes_many_documents
+    sources = (1..3000).map { |i| %Q({"id":#{i},"name":"n#{i}"}) }
+    expected = (1..3000).map { |i| {"id" => i, "name" => "n#{i}"} }
+    decoder = Gson::Decoder.new
+    assert_equal expected, decoder.decode_many(sources)
+    assert_equal expected, decoder.decode_many(sources, :parallelism => 4)
+    assert_equal [1, [], nil], decoder.decode_many(["1 2", "[]", "null"])
+
+    error = assert_raises(Gson::DecodeError) do
+      decoder.decode_many(sources + ['{"a":'] + sources, :parallelism => 3)
+    end
+    assert_match(/^document 3000: /, error.message)
+  end
+
   def test_it_accepts_io_objects
     path = File.expand_path("../okjson/t/valid-object-single.json", __FILE__)
     File.open(path) do |io|
@@ -37,6 +191,24 @@ class TestDecoder < MiniTest::Unit::TestCase
     assert_equal expected, decoder.decode(io)
   end
 
+  def test_it_decodes_files
+    path = File.expand_path("../fixtures/pass.contacts.json", __FILE__)
+    decoder = Gson::Decoder.new
+    assert_equal JSON.parse(File.read(path)), decoder.decode_file(path)
+
+    assert_raises Errno::ENOENT do
+      decoder.decode_file(path + ".missing")
+    end
+    Dir.mktmpdir do |dir|
+      locked = File.join(dir, "locked.json")
+      File.open(locked, "w") { |file| file << "[1]" }
+      File.chmod(0, locked)
+      unless File.readable?(locked) # the superuser reads it anyway
+        assert_raises(Errno::EACCES) { decoder.decode_file(locked) }
+      end
+    end
+  end
+
   def test_it_can_use_callback_to_return_documents
     decoder = Gson::Decoder.new
     actual = nil
@@ -79,6 +251,26 @@ class TestDecoder < MiniTest::Unit::TestCase
     assert_equal({'y'=>'z'}, actual)
   end
 
+  def test_it_feeds_documents_by_chunks
+    decoder = Gson::Decoder.new
+    cafe = "caf\xC3\xA9"
+    cafe.force_encoding("UTF-8") if defined?(Encoding)
+    # split the chunks inside of the two bytes of the e acute
+    source = '[1, "' + cafe + '"] 4'
+    source.force_encoding("BINARY") if defined?(Encoding)
+    split = '[1, "caf'.length + 1
+    assert_equal [], decoder.feed(source[0, split])
+    assert_equal [[1, cafe]], decoder.feed(source[split..-1])
+    assert_equal [], decoder.feed('2')
+    assert_equal [42], decoder.finish
+
+    decoder.feed('{"a":')
+    assert_raises Gson::DecodeError do
+      decoder.finish
+    end
+    assert_equal [{"b" => 1}], decoder.feed('{"b":1}')
+  end
+
   def test_in_lenient_mode_it_allows_top_level_value_of_any_type
     assert_valid_in_lenient_mode(1, "1")
   end
@@ -1,6 +1,7 @@
 require 'minitest/autorun'
 require 'gson'
 require 'stringio'
+require 'tmpdir'
 
 class TestEncoder < MiniTest::Unit::TestCase
 
@@ -118,6 +119,75 @@ EOJ
     assert_equal expected, encoder.encode(Custom.new(1, 2))
   end
 
+  class Point
+    def initialize(x, y)
+      @x, @y = x, y
+    end
+
+    def to_s
+      "#{@x},#{@y}"
+    end
+  end
+
+  class HiddenPoint < Point
+    def as_json(options = {})
+      [@x, @y]
+    end
+
+    def respond_to?(method, *args)
+      method != :as_json && super
+    end
+  end
+
+  def test_it_notices_redefined_methods_of_custom_objects
+    encoder = Gson::Encoder.new
+    assert_equal '["1,2","3,4"]', encoder.encode([Point.new(1, 2), Point.new(3, 4)])
+
+    Point.class_eval do
+      def as_json(options = {})
+        {:x => @x, :y => @y}
+      end
+    end
+    assert_equal '[{"x":1,"y":2}]', encoder.encode([Point.new(1, 2)])
+    assert_equal '"1,2"', encoder.encode(HiddenPoint.new(1, 2))
+
+    Point.send(:remove_method, :as_json)
+    assert_equal '["1,2"]', encoder.encode([Point.new(1, 2)])
+  end
+
+  class Cursor
+    include Enumerable
+
+    def initialize(count)
+      @count = count
+    end
+
+    def each
+      @count.times { |i| yield i, "row #{i}" }
+    end
+  end
+
+  def test_it_encodes_enumerators_as_arrays
+    encoder = Gson::Encoder.new
+    rows = (0...3).map { |i| {"id" => i} }.each
+    assert_equal '{"rows":[{"id":0},{"id":1},{"id":2}]}', encoder.encode({"rows" => rows})
+    assert_equal '[["a",0],["b",1]]', encoder.encode(%w(a b).each_with_index)
+    assert_equal '[[0,"row 0"],[1,"row 1"]]', encoder.encode(Cursor.new(2))
+
+    assert_equal '["1..3"]', encoder.encode([1..3])
+  end
+
+  def test_it_leaves_io_unread
+    encoder = Gson::Encoder.new
+    io = StringIO.new("a\nb\n")
+    refute_equal '["a\\n","b\\n"]', encoder.encode(io)
+    assert_equal 0, io.pos
+    File.open(__FILE__) do |file|
+      assert_kind_of String, Gson::Decoder.new.decode(encoder.encode([file])).first
+      assert_equal 0, file.pos
+    end
+  end
+
   def test_it_converts_unknown_objects_to_string
       time = Time.at(1355218745).utc
 
@@ -139,6 +209,137 @@ EOJ
       assert_equal(expected, decoder.decode(dumped_json))
   end
 
+  def test_it_encodes_strings_to_utf8
+    if defined?(Encoding)
+      source = {
+        "caf\u00e9" => "\u{1f600} \u2028\u2029 \t\"",
+        :sym => "\xe9t\xe9".force_encoding("ISO-8859-1")
+      }
+      expected = "{\"caf\u00e9\":\"\u{1f600} \\u2028\\u2029 \\t\\\"\",\"sym\":\"\u00e9t\u00e9\"}"
+      result = Gson::Encoder.new.encode(source)
+      assert_equal Encoding::UTF_8, result.encoding
+      assert_equal expected, result
+
+      output = StringIO.new
+      Gson::Encoder.new.encode(source, output)
+      assert_equal expected, output.string.force_encoding("UTF-8")
+    end
+  end
+
+  Pair = Struct.new(:left, :right)
+
+  def test_it_encodes_native_types_if_needed
+    require 'bigdecimal'
+    require 'date'
+    require 'set'
+
+    source = {
+      :time => Time.at(1355218745, 123456).utc,
+      :date => Date.new(2012, 12, 11),
+      :decimal => BigDecimal("12345678901234567890.125"),
+      :pair => Pair.new(1, [Set.new([:a, "b"])])
+    }
+    encoder = Gson::Encoder.new(:native_types => true)
+    assert encoder.native_types?
+    expected = '{"time":"2012-12-11T09:39:05.123Z","date":"2012-12-11",' +
+      '"decimal":12345678901234567890.125,"pair":{"left":1,"right":[["a","b"]]}}'
+    assert_equal expected, encoder.encode(source)
+
+    # Date and DateTime of 1.8 mode have no iso8601
+    day = Class.new(Date) do
+      undef_method :iso8601 if method_defined?(:iso8601)
+      def to_s
+        "on #{super}"
+      end
+    end
+    assert_equal '"on 2012-12-11"', encoder.encode(day.new(2012, 12, 11))
+
+    refute Gson::Encoder.new.native_types?
+    assert_equal "\"#{source[:time]}\"", Gson::Encoder.new.encode(source[:time])
+  end
+
+  class PairSerializer
+    include Java::Gson_ext::Serializer
+
+    def serialize(encoder, writer, context, value)
+      writer.value("#{value.left}/#{value.right}")
+    end
+  end
+
+  def test_it_uses_registered_serializers
+    encoder = Gson::Encoder.new(:native_types => true)
+    encoder.register_serializer(Pair, PairSerializer.new)
+    assert_equal '["1/2"]', encoder.encode([Pair.new(1, 2)])
+
+    assert_raises(ArgumentError) { encoder.register_serializer(Pair, Object.new) }
+  end
+
+  def test_it_formats_numbers_like_java
+    source = [0, -7, 1234567890123, -9223372036854775808, 2**70,
+              0.0, -0.0, 1.0, -12.5, 0.001, 0.000999, 1234567.125, 1.0e7,
+              0.1 + 0.2, 2.5e-8, 1.5e300]
+    expected = '[0,-7,1234567890123,-9223372036854775808,1180591620717411303424,' +
+      '0.0,-0.0,1.0,-12.5,0.001,9.99E-4,1234567.125,1.0E7,' +
+      '0.30000000000000004,2.5E-8,1.5E300]'
+    assert_equal expected, Gson::Encoder.new.encode(source)
+  end
+
+  def test_it_encodes_bignums
+    source = {"ids" => [2**63 - 1, 2**63, -(2**64), 10**18, 10**36 + 7, -(10**40)]}
+    expected = '{"ids":[9223372036854775807,9223372036854775808,-18446744073709551616,' +
+      '1000000000000000000,1000000000000000000000000000000000007,' +
+      '-10000000000000000000000000000000000000000]}'
+    assert_equal expected, Gson::Encoder.new.encode(source)
+  end
+
+  def test_it_reuses_encoded_keys
+    row = {:id => 1, "<b>".freeze => nil, :list => [{:id => 2}]}
+    source = [row, row]
+
+    expected = '[{"id":1,"<b>":null,"list":[{"id":2}]},{"id":1,"<b>":null,"list":[{"id":2}]}]'
+    encoder = Gson::Encoder.new
+    2.times { assert_equal expected, encoder.encode(source) }
+
+    expected = '[{"id":1,"list":[{"id":2}]},{"id":1,"list":[{"id":2}]}]'
+    assert_equal expected, Gson::Encoder.new(:serialize_nils => false).encode(source)
+
+    expected = '{"id":1,"\u003cb\u003e":null,"list":[{"id":2}]}'
+    assert_equal expected, Gson::Encoder.new(:html_safe => true).encode(row)
+
+    expected = "{\n  \"id\": 1,\n  \"<b>\": null,\n  \"list\": [\n    {\n      \"id\": 2\n    }\n  ]\n}"
+    assert_equal expected, Gson::Encoder.new(:indent => "  ").encode(row)
+  end
+
+  def test_it_encodes_large_documents_in_parallel
+    rows = (1..5000).map do |i|
+      {"id" => i, :name => "name #{i}", "score" => i / 8.0, "tags" => [i.to_s, nil], "note" => nil}
+    end
+    rows[4000]["custom"] = Custom.new(1, 2)
+    index = Hash[rows.map { |row| ["row #{row["id"]}", row] }]
+
+    [{}, {:indent => "  "}, {:serialize_nils => false}].each do |options|
+      serial = Gson::Encoder.new(options)
+      parallel = Gson::Encoder.new(options.merge(:parallelism => 4))
+      assert_equal serial.encode(rows), parallel.encode(rows)
+      assert_equal serial.encode(index), parallel.encode(index)
+    end
+    assert_equal 4, Gson::Encoder.new(:parallelism => 4).parallelism
+    assert_raises(ArgumentError) { Gson::Encoder.new(:parallelism => 0) }
+  end
+
+  def test_it_presizes_output_from_previous_calls
+    encoder = Gson::Encoder.new
+    rows = (1..100).map { |i| {"id" => i, "name" => "name #{i}"} }
+    expected = Gson::Encoder.new.encode(rows)
+    5.times { assert_equal expected, encoder.encode(rows) }
+    encoder.encode(rows.first(50))
+
+    stats = encoder.buffer_stats
+    assert_equal 1, stats[:misses]
+    assert_equal 5, stats[:hits]
+    assert_equal({4096 => 5, 2048 => 1}, stats[:sizes])
+  end
+
   def test_it_supports_output_streams
     encoder = Gson::Encoder.new
     expected = '{"foo":1,"bar":2}'
@@ -146,4 +347,134 @@ EOJ
     encoder.encode({:foo => 1, :bar => 2}, output)
     assert_equal expected, output.string
   end
+
+  class CountingIO < StringIO
+    attr_reader :writes
+
+    def write(data)
+      @writes = (@writes || 0) + 1
+      super
+    end
+  end
+
+  def test_it_buffers_output_streams
+    source = (1..10000).map { |i| {"id" => i, "name" => "name #{i}"} }
+    expected = Gson::Encoder.new.encode(source)
+
+    encoder = Gson::Encoder.new(:buffer_size => 64 * 1024)
+    assert_equal 64 * 1024, encoder.buffer_size
+    output = CountingIO.new
+    encoder.encode(source, output)
+    assert_equal expected, output.string
+    assert_equal (expected.bytesize / (64 * 1024.0)).ceil, output.writes
+
+    assert_raises(ArgumentError) { Gson::Encoder.new(:buffer_size => 0) }
+  end
+
+  def test_it_streams_documents
+    rows = (1..1000).map { |i| {"id" => i, "name" => "name #{i}"} }
+    expected = Gson::Encoder.new.encode({"total" => 1000, "rows" => rows})
+
+    output = StringIO.new
+    Gson::Encoder.new.stream(output, :threshold => 1024) do |stream|
+      stream.begin_object
+      stream.name("total").value(1000)
+      stream.name(:rows).begin_array
+      rows.each { |row| stream << row }
+      assert_operator output.string.bytesize, :>, expected.bytesize - 1024
+      stream.end_array
+      stream.end_object
+    end
+    assert_equal expected, output.string
+
+    stream = Gson::Encoder.new.stream(StringIO.new)
+    stream.begin_array.value(1)
+    assert_raises(Gson::EncodeError) { stream.close }
+    assert stream.closed?
+  end
+
+  def test_it_encodes_to_channels
+    source = (1..20000).map { |i| {"id" => i, "name" => "name #{i}"} }
+    expected = Gson::Encoder.new.encode(source)
+    encoder = Gson::Encoder.new
+    path = File.join(Dir.tmpdir, "gson-encode-to-channel-#{$$}.json")
+
+    File.open(path, "w") do |file|
+      file.write("[")
+      assert_equal expected.bytesize, encoder.encode_to_channel(source, file)
+      file.write("]")
+    end
+    assert_equal "[#{expected}]", File.read(path)
+
+    bytes = java.io.ByteArrayOutputStream.new
+    encoder.encode_to_channel(source, java.nio.channels.Channels.newChannel(bytes))
+    written = String.from_java_bytes(bytes.toByteArray)
+    written.force_encoding("UTF-8") if defined?(Encoding)
+    assert_equal expected, written
+
+    channel = java.io.RandomAccessFile.new(path, "rw").getChannel
+    begin
+      encoder.encode_to_channel([1, 2], channel, :position => 1)
+      assert_equal 0, channel.position
+    ensure
+      channel.close
+    end
+    assert_equal "[[1,2]", File.read(path)[0, 6]
+
+    assert_raises(ArgumentError) { encoder.encode_to_channel(source, "file.json") }
+  ensure
+    File.unlink(path) if path && File.exist?(path)
+  end
+
+  def test_it_appends_to_strings_and_buffers
+    encoder = Gson::Encoder.new
+    e_acute = "\303\251"
+    e_acute.force_encoding("UTF-8") if defined?(Encoding)
+    output = "["
+    assert_same output, encoder.encode({"a" => e_acute}, :into => output)
+    output << ","
+    encoder.encode([1, 2], :into => output)
+    output << "]"
+    assert_equal "[{\"a\":\"#{e_acute}\"},[1,2]]", output
+    assert_equal Encoding::UTF_8, output.encoding if defined?(Encoding)
+
+    buffer = java.nio.ByteBuffer.allocate(16)
+    encoder.encode([1, 2], :into => buffer)
+    assert_equal 5, buffer.position
+    assert_raises(Gson::EncodeError) { encoder.encode("x" * 16, :into => buffer) }
+    assert_equal 5, buffer.position
+    assert_equal "[1,2]", String.from_java_bytes(buffer.array)[0, 5]
+
+    # frozen strings raise TypeError in 1.8 mode
+    assert_raises(RuntimeError, TypeError) { encoder.encode(1, :into => "".freeze) }
+    assert_raises(ArgumentError) { encoder.encode(1, :into => 1) }
+  end
+
+  def test_it_encodes_rows_with_the_same_keys
+    rows = [{"id" => 1, "name" => "a", "tags" => [{"t" => 1}, {"t" => nil}]},
+            {"id" => 2, "name" => "b", "tags" => []},
+            {"name" => "c", "id" => 3, "tags" => nil},
+            {"id" => 4, "name" => nil, "tags" => nil, :x => 1.5}]
+    assert_equal '[{"id":1,"name":"a","tags":[{"t":1},{"t":null}]},' +
+                 '{"id":2,"name":"b","tags":[]},' +
+                 '{"name":"c","id":3,"tags":null},' +
+                 '{"id":4,"name":null,"tags":null,"x":1.5}]', Gson::Encoder.new.encode(rows)
+    assert_equal '[{"id":1,"name":"a","tags":[{"t":1},{}]},' +
+                 '{"id":2,"name":"b","tags":[]},' +
+                 '{"name":"c","id":3},' +
+                 '{"id":4,"x":1.5}]', Gson::Encoder.new(:serialize_nils => false).encode(rows)
+  end
+
+  def test_it_escapes_between_long_clean_runs
+    text = "x" * 100
+    euro, line_separator, paragraph_separator = "\342\202\254", "\342\200\250", "\342\200\251"
+    if defined?(Encoding)
+      [euro, line_separator, paragraph_separator].each { |s| s.force_encoding("UTF-8") }
+    end
+    source = "\"#{text}#{euro}#{text}#{line_separator}#{text}\n"
+    expected = "\"\\\"#{text}#{euro}#{text}\\u2028#{text}\\n\""
+    assert_equal expected, Gson::Encoder.new.encode(source)
+    assert_equal "\"#{text}\\u003c\"", Gson::Encoder.new(:html_safe => true).encode("#{text}<")
+    assert_equal "\"#{text}\\u2029\"", Gson::Encoder.new.encode("#{text}#{paragraph_separator}")
+  end
 end